@@ -27,6 +27,7 @@ plugins {
     kotlin("jvm")
     kotlin("plugin.noarg")
     id("net.minecraftforge.gradle.forge")
+    id("me.champeau.gradle.jmh") version "0.4.8"
 }
 
 val branch = prop("branch") ?: "git rev-parse --abbrev-ref HEAD".execute(rootDir.absolutePath).lines().last()
@@ -98,6 +99,8 @@ dependencies {
     deobfCompile("com.fantasticsource.dynamicstealth:DynamicStealth:1.12.2.078")
     deobfCompile("com.fantasticsource.dynamicstealth:FantasticLib:1.12.2.016")
     api("org.jetbrains.kotlin:kotlin-stdlib:$kotlin_version")
+
+    testImplementation("junit:junit:4.12")
 }
 
 tasks {
@@ -139,6 +142,28 @@ tasks {
     }
 }
 
+/*
+Benchmarks, run with `./gradlew jmh`.
+They run headless (outside of FML), against the deobfuscated Minecraft classes.
+ */
+sourceSets["jmh"].apply {
+    compileClasspath += sourceSets["main"].compileClasspath
+    runtimeClasspath += sourceSets["main"].runtimeClasspath
+}
+
+jmh {
+    jmhVersion = "1.21"
+    fork = 1
+    warmupIterations = 3
+    iterations = 5
+    duplicateClassesStrategy = DuplicatesStrategy.WARN
+}
+
+tasks.getByName<KotlinCompile>("compileJmhKotlin") {
+    // Benchmarks need access to internal setup functions
+    kotlinOptions.freeCompilerArgs += "-Xfriend-paths=${sourceSets["main"].output.classesDirs.joinToString(",")}"
+}
+
 val deobfJar by tasks.creating(Jar::class) {
     from(sourceSets["main"].output)
     manifest {
@@ -0,0 +1,117 @@
+/*
+ * Copyright (C) 2019.  Arnaud 'Bluexin' Solé
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package be.bluexin.rpg.benchmarks
+
+import be.bluexin.rpg.BlueRPG
+import be.bluexin.rpg.PlayerSync
+import be.bluexin.rpg.classes.PlayerClassCollection
+import be.bluexin.rpg.devutil.CapabilitySchema
+import be.bluexin.rpg.gear.Binding
+import be.bluexin.rpg.gear.Rarity
+import be.bluexin.rpg.stats.*
+import com.teamwizardry.librarianlib.features.saving.AbstractSaveHandler
+import net.minecraft.entity.monster.EntityZombie
+import net.minecraft.util.ResourceLocation
+import org.openjdk.jmh.annotations.*
+import java.util.*
+
+/**
+ * Capability serialization through their [CapabilitySchema], against liblib's reflective [AbstractSaveHandler] they
+ * replaced. Reads go into the same instance, like a client receiving a sync would.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(java.util.concurrent.TimeUnit.NANOSECONDS)
+open class CapabilitySchemaBenchmark {
+
+    @Param("gear", "token", "player", "classes")
+    lateinit var capability: String
+
+    private lateinit var case: Case<*>
+
+    private class Case<T : Any>(private val schema: CapabilitySchema<T>, private val instance: T) {
+        private val schemaNbt = schema.write(instance)
+        private val autoNbt = AbstractSaveHandler.writeAutoNBT(instance, false)
+
+        fun schemaWrite() = schema.write(instance)
+
+        fun schemaRead() = schema.read(instance, schemaNbt)
+
+        fun autoWrite() = AbstractSaveHandler.writeAutoNBT(instance, false)
+
+        fun autoRead() = AbstractSaveHandler.readAutoNBT(instance, autoNbt, false)
+    }
+
+    @Setup
+    fun setup() {
+        Headless.capabilities
+        val world = Headless.world()
+        case = when (capability) {
+            "gear" -> Case(GearStats.Schema, GearStats().apply {
+                generated = true
+                rarity = Rarity.EPIC
+                binding = Binding.BOE
+                bound = UUID(1L, 2L)
+                boundUsername = "bench"
+                ilvl = 42
+                levelReq = 40
+                name = "Benchmark blade"
+                PrimaryStat.values().forEachIndexed { i, it -> stats[it] = i + 1 }
+                SecondaryStat.values().forEachIndexed { i, it -> if (i % 2 == 0) stats[it] = i + 1 }
+                durability = 250
+                requiredStat = PrimaryStat.STRENGTH
+                requiredValue = 4
+            })
+            "token" -> Case(TokenStats.Schema, TokenStats().apply {
+                rarity = Rarity.LEGENDARY
+                ilvl = 17
+                levelReq = 9
+            })
+            "player" -> Case(PlayerStats.Schema, BenchPlayer(world).stats.apply {
+                level.applySync(12, 345L)
+                attributePoints = 9
+                PrimaryStat.values().forEachIndexed { i, it -> baseStats[it] = i + 1 }
+            })
+            "classes" -> Case(PlayerClassCollection.Schema, PlayerClassCollection().apply {
+                setup(EntityZombie(world))
+                val keys = Array<ResourceLocation?>(5) { ResourceLocation(BlueRPG.MODID, "skill_$it") }
+                applySync(PlayerSync.Update().apply {
+                    mask = PlayerSync.Field.SKILL_POINTS.bit or PlayerSync.Field.SELECTED_SKILLS.bit or
+                            PlayerSync.Field.CLASSES.bit
+                    skillPoints = 4
+                    keys.forEachIndexed { i, it -> skills[it!!] = i % 3 + 1 }
+                    selectedSkills = keys
+                    classes = arrayOf(ResourceLocation(BlueRPG.MODID, "mage"), null, null)
+                })
+            })
+            else -> throw IllegalArgumentException(capability)
+        }
+    }
+
+    @Benchmark
+    fun schemaWrite() = case.schemaWrite()
+
+    @Benchmark
+    fun schemaRead() = case.schemaRead()
+
+    @Benchmark
+    fun autoWrite() = case.autoWrite()
+
+    @Benchmark
+    fun autoRead() = case.autoRead()
+}
@@ -0,0 +1,94 @@
+/*
+ * Copyright (C) 2019.  Arnaud 'Bluexin' Solé
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package be.bluexin.rpg.benchmarks
+
+import be.bluexin.rpg.DamageHandler
+import be.bluexin.rpg.stats.SecondaryStat
+import be.bluexin.rpg.stats.stats
+import net.minecraft.entity.EntityLivingBase
+import net.minecraft.entity.monster.EntityZombie
+import net.minecraft.entity.player.EntityPlayer
+import net.minecraft.util.EntityDamageSource
+import net.minecraftforge.event.entity.living.LivingAttackEvent
+import net.minecraftforge.event.entity.living.LivingDamageEvent
+import org.openjdk.jmh.annotations.*
+import org.openjdk.jmh.infra.Blackhole
+
+/**
+ * Damage resolution through [DamageHandler], with players from [Headless] standing in for FML capabilities.
+ * The world time advances on every hit, so procs come off cooldown like they would in a long fight.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(java.util.concurrent.TimeUnit.NANOSECONDS)
+open class DamageHandlerBenchmark {
+
+    private lateinit var world: BenchWorld
+
+    private lateinit var attacker: EntityPlayer
+
+    private lateinit var defender: EntityPlayer
+
+    private lateinit var mob: EntityZombie
+
+    @Setup
+    fun setup() {
+        world = Headless.world()
+        attacker = world.add(BenchPlayer(world, "attacker"), .0, 64.0, .0)
+        defender = world.add(BenchPlayer(world, "defender"), 1.0, 64.0, .0)
+        mob = world.add(EntityZombie(world), -1.0, 64.0, .0)
+
+        for (stat in arrayOf(
+            SecondaryStat.CRIT_CHANCE, SecondaryStat.CRIT_DAMAGE, SecondaryStat.LIFE_STEAL_CHANCE,
+            SecondaryStat.LIFE_STEAL, SecondaryStat.MANA_LEECH_CHANCE, SecondaryStat.MANA_LEECH
+        )) attacker.getEntityAttribute(stat.attribute).baseValue = 20.0
+        for (stat in arrayOf(SecondaryStat.REFLECT, SecondaryStat.DODGE, SecondaryStat.RESISTANCE)) {
+            defender.getEntityAttribute(stat.attribute).baseValue = 10.0
+        }
+        attacker.stats.snapshot.invalidate()
+        defender.stats.snapshot.invalidate()
+    }
+
+    private fun reset(target: EntityLivingBase) {
+        target.health = target.maxHealth
+        target.hurtResistantTime = 0
+        world.tick()
+    }
+
+    /**
+     * A player hitting a mob, replacing vanilla damage with our own.
+     */
+    @Benchmark
+    fun attack(bh: Blackhole) {
+        reset(mob)
+        val event = LivingAttackEvent(mob, EntityDamageSource("player", attacker), 1f)
+        DamageHandler(event)
+        bh.consume(event.isCanceled)
+    }
+
+    /**
+     * A player getting hit by another, with defensive and offensive procs.
+     */
+    @Benchmark
+    fun damage(bh: Blackhole) {
+        reset(defender)
+        val event = LivingDamageEvent(defender, DamageHandler.RpgDamageSource(EntityDamageSource("player", attacker)), 4f)
+        DamageHandler(event)
+        bh.consume(event.amount)
+    }
+}
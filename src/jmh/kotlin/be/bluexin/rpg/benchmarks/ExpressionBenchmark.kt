@@ -0,0 +1,53 @@
+/*
+ * Copyright (C) 2019.  Arnaud 'Bluexin' Solé
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package be.bluexin.rpg.benchmarks
+
+import be.bluexin.rpg.skills.*
+import net.minecraft.entity.monster.EntityZombie
+import org.openjdk.jmh.annotations.*
+
+/**
+ * JEL expression evaluation from [DynamicValues][be.bluexin.rpg.skills.ExpressionData].
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(java.util.concurrent.TimeUnit.NANOSECONDS)
+open class ExpressionBenchmark {
+
+    @Param("NONE", "PER_CAST", "STATIC")
+    lateinit var cacheType: CacheType
+
+    private lateinit var expression: DoubleExpression<Target>
+    private lateinit var holder: Holder<Target>
+
+    @Setup
+    fun setup() {
+        val world = Headless.world()
+        val caster = world.add(EntityZombie(world), .0, 64.0, .0)
+        val target = world.add(EntityZombie(world), 2.0, 64.0, .0)
+        holder = Holder(caster.holder, target.holder, SkillContext(caster, 1))
+        expression = LibHelper.compileDouble(ExpressionData(cacheType, "(2.5 + 0.5 * 3) * rng().nextDouble(0.95, 1.05)"))
+        expression.updateCache(holder)
+    }
+
+    @Benchmark
+    fun compile() = LibHelper.compileDouble<Target>(ExpressionData(cacheType, "3 * (1.5 + 2.5)"))
+
+    @Benchmark
+    fun evaluate() = expression(holder)
+}
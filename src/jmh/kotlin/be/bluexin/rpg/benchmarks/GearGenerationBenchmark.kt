@@ -0,0 +1,102 @@
+/*
+ * Copyright (C) 2019.  Arnaud 'Bluexin' Solé
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package be.bluexin.rpg.benchmarks
+
+import be.bluexin.rpg.CommonProxy
+import be.bluexin.rpg.gear.MeleeWeaponItem
+import be.bluexin.rpg.gear.MeleeWeaponType
+import be.bluexin.rpg.gear.NameGenerator
+import be.bluexin.rpg.gear.Rarity
+import be.bluexin.rpg.stats.FormulaeConfiguration
+import be.bluexin.rpg.stats.GearBatchGenerator
+import be.bluexin.rpg.stats.GearStats
+import net.minecraft.entity.player.EntityPlayer
+import net.minecraft.item.ItemStack
+import org.openjdk.jmh.annotations.*
+import org.openjdk.jmh.infra.Blackhole
+import java.nio.file.Files
+
+/**
+ * Batch generation of gear, as done for loot drops (no player) and token openings (named after the player).
+ * Uses the default formulae and name files, stacks get their [GearStats] through [Headless]'s capability stand-ins.
+ * [Rarity.GODLIKE] gear gets legendary names.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(java.util.concurrent.TimeUnit.MICROSECONDS)
+open class GearGenerationBenchmark {
+
+    @Param("1", "16", "128")
+    var size = 0
+
+    @Param("COMMON", "GODLIKE")
+    lateinit var rarity: Rarity
+
+    private lateinit var world: BenchWorld
+
+    private lateinit var player: EntityPlayer
+
+    private lateinit var batch: List<GearStats>
+
+    @Setup(Level.Trial)
+    fun setup() {
+        Headless.capabilities
+        CommonProxy.customConfDir = Files.createTempDirectory("bluerpg-bench").toFile()
+        FormulaeConfiguration.preInit()
+        NameGenerator.preInit()
+        world = Headless.world()
+        player = world.add(BenchPlayer(world), .0, 64.0, .0)
+        val item = MeleeWeaponItem[MeleeWeaponType.SWORD]
+        batch = List(size) { i ->
+            ItemStack(item).getCapability(GearStats.Capability, null)!!.also {
+                it.ilvl = 1 + i % 60
+                it.rarity = rarity
+            }
+        }
+    }
+
+    private fun reset() {
+        for (gear in batch) {
+            gear.rarity = rarity
+            gear.requiredValue = 0
+            gear.name = null
+        }
+    }
+
+    @Benchmark
+    fun generate(bh: Blackhole) {
+        reset()
+        GearBatchGenerator.generate(batch, world, null)
+        bh.consume(batch)
+    }
+
+    @Benchmark
+    fun generateNamed(bh: Blackhole) {
+        reset()
+        GearBatchGenerator.generate(batch, world, player)
+        bh.consume(batch)
+    }
+
+    /**
+     * [NameGenerator] alone, for every stack of the batch.
+     */
+    @Benchmark
+    fun name(bh: Blackhole) {
+        for (gear in batch) bh.consume(NameGenerator(gear.itemStackIn, player))
+    }
+}
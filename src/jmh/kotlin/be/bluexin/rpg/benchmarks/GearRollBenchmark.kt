@@ -0,0 +1,67 @@
+/*
+ * Copyright (C) 2019.  Arnaud 'Bluexin' Solé
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package be.bluexin.rpg.benchmarks
+
+import be.bluexin.rpg.CommonProxy
+import be.bluexin.rpg.gear.MeleeWeaponType
+import be.bluexin.rpg.gear.Rarity
+import be.bluexin.rpg.stats.FormulaeConfiguration
+import be.bluexin.rpg.stats.PrimaryStat
+import be.bluexin.rpg.stats.SecondaryStat
+import net.minecraft.inventory.EntityEquipmentSlot
+import org.openjdk.jmh.annotations.*
+import org.openjdk.jmh.infra.Blackhole
+import java.nio.file.Files
+
+/**
+ * Stat rolls, as done by GearStats.generate.
+ * Uses the default formulae file.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(java.util.concurrent.TimeUnit.NANOSECONDS)
+open class GearRollBenchmark {
+
+    @Param("COMMON", "EPIC", "GODLIKE")
+    lateinit var rarity: Rarity
+
+    @Param("1", "60")
+    var ilvl = 0
+
+    @Setup(Level.Trial)
+    fun setup() {
+        Headless.bootstrap()
+        CommonProxy.customConfDir = Files.createTempDirectory("bluerpg-bench").toFile()
+        FormulaeConfiguration.preInit()
+    }
+
+    @Benchmark
+    fun rollStats(bh: Blackhole) = bh.consume(rarity.rollStats())
+
+    @Benchmark
+    fun primaryRoll(bh: Blackhole) =
+        bh.consume(PrimaryStat.STRENGTH.getRoll(ilvl, rarity, MeleeWeaponType.SWORD, EntityEquipmentSlot.MAINHAND))
+
+    @Benchmark
+    fun fullRoll(bh: Blackhole) {
+        for (stat in rarity.rollStats()) {
+            bh.consume(stat.getRoll(ilvl, rarity, MeleeWeaponType.SWORD, EntityEquipmentSlot.MAINHAND))
+        }
+        bh.consume(SecondaryStat.CRIT_CHANCE.getRoll(ilvl, rarity, MeleeWeaponType.SWORD, EntityEquipmentSlot.MAINHAND))
+    }
+}
@@ -0,0 +1,167 @@
+/*
+ * Copyright (C) 2019.  Arnaud 'Bluexin' Solé
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package be.bluexin.rpg.benchmarks
+
+import be.bluexin.rpg.CombatState
+import be.bluexin.rpg.CommonEventHandler
+import be.bluexin.rpg.devutil.SchemaCapabilityStorage
+import be.bluexin.rpg.skills.spatialIndex
+import be.bluexin.rpg.stats.GearStats
+import be.bluexin.rpg.stats.PlayerStats
+import com.mojang.authlib.GameProfile
+import net.minecraft.entity.EntityLivingBase
+import net.minecraft.entity.monster.EntityZombie
+import net.minecraft.entity.player.EntityPlayer
+import net.minecraft.init.Bootstrap
+import net.minecraft.item.ItemStack
+import net.minecraft.profiler.Profiler
+import net.minecraft.util.EnumFacing
+import net.minecraft.util.math.BlockPos
+import net.minecraft.world.GameType
+import net.minecraft.world.World
+import net.minecraft.world.WorldProviderSurface
+import net.minecraft.world.WorldSettings
+import net.minecraft.world.WorldType
+import net.minecraft.world.chunk.IChunkProvider
+import net.minecraft.world.storage.SaveHandlerMP
+import net.minecraft.world.storage.WorldInfo
+import net.minecraftforge.common.capabilities.Capability
+import net.minecraftforge.event.entity.EntityEvent
+import java.util.*
+import java.util.concurrent.Callable
+
+/**
+ * Lightweight stand-ins for the Minecraft environment, so benchmarks can run without a server.
+ */
+object Headless {
+
+    init {
+        Bootstrap.register()
+    }
+
+    /**
+     * Makes sure vanilla registries are set up.
+     */
+    fun bootstrap() = Unit
+
+    /**
+     * Stands in for FML's capability injection, for the capabilities benchmarks need.
+     */
+    val capabilities by lazy {
+        bootstrap()
+        PlayerStats.Capability = capability(SchemaCapabilityStorage(PlayerStats.Schema)) { PlayerStats() }
+        CombatState.Capability = capability(CombatState.Storage) { CombatState() }
+        GearStats.Capability = capability(GearStats.Storage) { GearStats(ItemStack.EMPTY) }
+    }
+
+    private inline fun <reified T> capability(storage: Capability.IStorage<T>, noinline factory: () -> T): Capability<T> {
+        val constructor = Capability::class.java.getDeclaredConstructor(
+            String::class.java, Capability.IStorage::class.java, Callable::class.java
+        )
+        constructor.isAccessible = true
+        @Suppress("UNCHECKED_CAST")
+        return constructor.newInstance(T::class.java.name, storage, Callable(factory)) as Capability<T>
+    }
+
+    /**
+     * Creates a server-side world without chunks, with [count] zombies spread on a square of [spread] blocks around
+     * the origin. Entities are added to the loaded entity list directly.
+     */
+    fun world(count: Int = 0, spread: Double = 16.0): BenchWorld {
+        bootstrap()
+        val world = BenchWorld()
+        val random = java.util.Random(42)
+        repeat(count) {
+            world.add(
+                EntityZombie(world),
+                (random.nextDouble() - .5) * spread,
+                64.0,
+                (random.nextDouble() - .5) * spread
+            )
+        }
+        return world
+    }
+}
+
+/**
+ * Player with the mod attributes and the [PlayerStats] and [CombatState] capabilities, like FML would set it up.
+ */
+class BenchPlayer(world: World, name: String = "bench") :
+    EntityPlayer(world, GameProfile(UUID.nameUUIDFromBytes(name.toByteArray()), name)) {
+
+    private val stats: PlayerStats
+    private val combat: CombatState
+
+    init {
+        Headless.capabilities
+        CommonEventHandler.entityConstructing(EntityEvent.EntityConstructing(this))
+        stats = PlayerStats().setup(this) as PlayerStats
+        combat = CombatState().setup(this) as CombatState
+    }
+
+    override fun isSpectator() = false
+
+    override fun isCreative() = false
+
+    override fun hasCapability(capability: Capability<*>, facing: EnumFacing?) =
+        capability === PlayerStats.Capability || capability === CombatState.Capability ||
+                super.hasCapability(capability, facing)
+
+    override fun <T : Any?> getCapability(capability: Capability<T>, facing: EnumFacing?): T? = when {
+        capability === PlayerStats.Capability -> capability.cast(stats)
+        capability === CombatState.Capability -> capability.cast(combat)
+        else -> super.getCapability(capability, facing)
+    }
+}
+
+/**
+ * Server-side world without chunks nor saving.
+ */
+class BenchWorld : World(
+    SaveHandlerMP(),
+    WorldInfo(WorldSettings(0L, GameType.SURVIVAL, false, false, WorldType.FLAT), "benchmark"),
+    WorldProviderSurface(),
+    Profiler(),
+    false
+) {
+    override fun createChunkProvider(): IChunkProvider? = null
+
+    override fun isChunkLoaded(x: Int, z: Int, allowEmpty: Boolean) = false
+
+    /**
+     * Entities count as loaded for the spatial index, even though chunk lookups report nothing.
+     */
+    override fun isBlockLoaded(pos: BlockPos) = true
+
+    fun <T : EntityLivingBase> add(entity: T, x: Double, y: Double, z: Double): T {
+        entity.setPosition(x, y, z)
+        loadedEntityList.add(entity)
+        spatialIndex.update(entity)
+        return entity
+    }
+
+    /**
+     * Advances the world time, like a server tick would.
+     * Entities don't actually update, but they are moved in the spatial index as if they did.
+     */
+    fun tick() {
+        worldInfo.worldTotalTime = worldInfo.worldTotalTime + 1
+        val index = spatialIndex
+        for (e in loadedEntityList) if (e is EntityLivingBase) index.update(e)
+    }
+}
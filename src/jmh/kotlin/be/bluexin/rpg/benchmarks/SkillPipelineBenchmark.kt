@@ -0,0 +1,69 @@
+/*
+ * Copyright (C) 2019.  Arnaud 'Bluexin' Solé
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package be.bluexin.rpg.benchmarks
+
+import be.bluexin.rpg.skills.*
+import net.minecraft.entity.monster.EntityZombie
+import net.minecraftforge.fml.common.gameevent.TickEvent
+import org.openjdk.jmh.annotations.*
+import org.openjdk.jmh.infra.Blackhole
+
+/**
+ * [Processor.cast] up to the effect, with an AoE targeting among [entities] zombies.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(java.util.concurrent.TimeUnit.MICROSECONDS)
+open class SkillPipelineBenchmark {
+
+    @Param("10", "200")
+    var entities = 0
+
+    private lateinit var world: BenchWorld
+    private lateinit var context: SkillContext
+    private lateinit var processor: Processor
+    private val tick = TickEvent.ServerTickEvent(TickEvent.Phase.END)
+
+    /**
+     * Stand-in effect, so we don't need a fully working world to apply damage.
+     */
+    private class CountingEffect : Effect {
+        var hits = 0
+
+        override fun invoke(context: SkillContext, targets: TargetBuffer) {
+            targets.forEach { _, _ -> ++hits }
+        }
+    }
+
+    private val effect = CountingEffect()
+
+    @Setup
+    fun setup() {
+        world = Headless.world(entities, spread = 32.0)
+        context = SkillContext(world.add(EntityZombie(world), .0, 64.0, .0), 1)
+        processor = Processor(Use({ 0 }), AoE(8.0), null, effect)
+    }
+
+    @Benchmark
+    fun cast(bh: Blackhole) {
+        world.tick()
+        processor.cast(context)
+        SkillScheduler.serverTick(tick)
+        bh.consume(effect.hits)
+    }
+}
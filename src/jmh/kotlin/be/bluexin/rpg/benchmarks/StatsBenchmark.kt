@@ -0,0 +1,63 @@
+/*
+ * Copyright (C) 2019.  Arnaud 'Bluexin' Solé
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package be.bluexin.rpg.benchmarks
+
+import be.bluexin.rpg.devutil.SerializeStatsCollection
+import be.bluexin.rpg.stats.PrimaryStat
+import be.bluexin.rpg.stats.SecondaryStat
+import be.bluexin.rpg.stats.StatsCollection
+import net.minecraft.nbt.NBTBase
+import org.openjdk.jmh.annotations.*
+import org.openjdk.jmh.infra.Blackhole
+import java.lang.ref.WeakReference
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(java.util.concurrent.TimeUnit.NANOSECONDS)
+open class StatsBenchmark {
+
+    private lateinit var stats: StatsCollection
+
+    private lateinit var nbt: NBTBase
+
+    @Setup
+    fun setup() {
+        Headless.bootstrap()
+        stats = StatsCollection(WeakReference(null))
+        PrimaryStat.values().forEachIndexed { i, it -> stats[it] = i + 1 }
+        SecondaryStat.values().forEachIndexed { i, it -> if (i % 2 == 0) stats[it] = i + 1 }
+        nbt = SerializeStatsCollection.writeNBT(stats, false)
+    }
+
+    @Benchmark
+    fun getAll(bh: Blackhole) {
+        for (s in PrimaryStat.values()) bh.consume(stats[s])
+        for (s in SecondaryStat.values()) bh.consume(stats[s])
+    }
+
+    @Benchmark
+    fun set(bh: Blackhole) {
+        bh.consume(stats.set(PrimaryStat.STRENGTH, stats[PrimaryStat.STRENGTH] + 1))
+    }
+
+    @Benchmark
+    fun writeNBT() = SerializeStatsCollection.writeNBT(stats, false)
+
+    @Benchmark
+    fun readNBT() = SerializeStatsCollection.readNBT(nbt, null, false)
+}
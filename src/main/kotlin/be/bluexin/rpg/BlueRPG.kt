@@ -18,9 +18,12 @@
 package be.bluexin.rpg
 
 import be.bluexin.rpg.devutil.BlueRPGDataFixer
+import be.bluexin.rpg.devutil.TickWheel
 import be.bluexin.rpg.modplugins.CNPCEventHandler
 import be.bluexin.rpg.modplugins.SAOUIEventHandler
 import be.bluexin.rpg.pets.AWIntegration
+import be.bluexin.rpg.skills.ChainTracker
+import be.bluexin.rpg.skills.SkillScheduler
 import be.bluexin.rpg.utilities.CastCommand
 import be.bluexin.rpg.utilities.Command
 import be.bluexin.rpg.utilities.ResetCommand
@@ -34,6 +37,7 @@ import net.minecraftforge.fml.common.event.FMLInitializationEvent
 import net.minecraftforge.fml.common.event.FMLPostInitializationEvent
 import net.minecraftforge.fml.common.event.FMLPreInitializationEvent
 import net.minecraftforge.fml.common.event.FMLServerStartingEvent
+import net.minecraftforge.fml.common.event.FMLServerStoppedEvent
 import noppes.npcs.CustomNpcs
 import org.apache.logging.log4j.LogManager
 import org.apache.logging.log4j.Logger
@@ -93,4 +97,13 @@ object BlueRPG {
         if (event.server.isDedicatedServer) BlueRPGDataFixer.setup(event.server.dataFixer)
         // TODO: register fixer for client & server here (was I drunk?)
     }
+
+    @Mod.EventHandler
+    fun serverStopped(event: FMLServerStoppedEvent) {
+        SkillScheduler.clear()
+        ChainTracker.clear()
+        TickWheel.clear()
+        CommonEventHandler.clearPlayerTasks()
+        EntityTracking.clear()
+    }
 }
\ No newline at end of file
@@ -0,0 +1,156 @@
+/*
+ * Copyright (C) 2019.  Arnaud 'Bluexin' Solé
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package be.bluexin.rpg
+
+import be.bluexin.rpg.devutil.RNG
+import be.bluexin.saomclib.capabilities.AbstractEntityCapability
+import be.bluexin.saomclib.capabilities.Key
+import net.minecraft.entity.player.EntityPlayer
+import net.minecraft.nbt.NBTBase
+import net.minecraft.nbt.NBTTagCompound
+import net.minecraft.util.EnumFacing
+import net.minecraft.util.ResourceLocation
+import net.minecraftforge.common.capabilities.Capability
+import net.minecraftforge.common.capabilities.CapabilityInject
+
+/**
+ * Combat bookkeeping for players : proc cooldowns and weapon swing state.
+ * Server side only, never synced.
+ */
+class CombatState : AbstractEntityCapability() {
+
+    /**
+     * World time of the last trigger of each [Proc], indexed by ordinal.
+     */
+    private val procs = LongArray(Proc.values().size)
+
+    /**
+     * Attack strength of the last weapon swing, used to scale weapon damage and knockback.
+     */
+    var lastWeaponCooldown = 0f
+
+    /**
+     * World time of the last weapon swing.
+     */
+    var weaponTime = 0L
+
+    /**
+     * World time of the last weapon durability loss.
+     */
+    var weaponDamageTime = 0L
+
+    /**
+     * Whether we are currently resolving a custom (AoE) attack.
+     */
+    var customAttackProcessing = false
+
+    fun ready(proc: Proc, time: Long) = procs[proc.ordinal] <= time - proc.cooldown
+
+    fun trigger(proc: Proc, time: Long) {
+        procs[proc.ordinal] = time
+    }
+
+    /**
+     * Rolls [proc] against [chance] if it's off cooldown, putting it on cooldown on success.
+     */
+    fun tryProc(proc: Proc, time: Long, chance: Double) =
+        if (ready(proc, time) && RNG.nextDouble() <= chance) {
+            trigger(proc, time)
+            true
+        } else false
+
+    /**
+     * Moves the values stored in entityData by older versions into this capability.
+     */
+    fun migrateLegacy() {
+        val player = reference.get() as? EntityPlayer ?: return
+        val t = player.entityData
+        Proc.values().forEach {
+            if (t.hasKey(it.legacyKey)) {
+                procs[it.ordinal] = t.getLong(it.legacyKey)
+                t.removeTag(it.legacyKey)
+            }
+        }
+        if (t.hasKey(LEGACY_LAST_WEAPON_CD)) {
+            lastWeaponCooldown = t.getFloat(LEGACY_LAST_WEAPON_CD)
+            t.removeTag(LEGACY_LAST_WEAPON_CD)
+        }
+        if (t.hasKey(LEGACY_WEAPON_TIME)) {
+            weaponTime = t.getLong(LEGACY_WEAPON_TIME)
+            t.removeTag(LEGACY_WEAPON_TIME)
+        }
+        if (t.hasKey(LEGACY_WEAPON_DAMAGE_TIME)) {
+            weaponDamageTime = t.getLong(LEGACY_WEAPON_DAMAGE_TIME)
+            t.removeTag(LEGACY_WEAPON_DAMAGE_TIME)
+        }
+        t.removeTag(LEGACY_CUSTOM_ATTACK)
+    }
+
+    enum class Proc(private val cooldownGetter: () -> Int) {
+        REFLECT({ DamageHandler.reflectCD }),
+        BLOCK({ DamageHandler.blockCD }),
+        DODGE({ DamageHandler.dodgeCD }),
+        PARRY({ DamageHandler.parryCD }),
+        LIFE_STEAL({ DamageHandler.lifeStealCD }),
+        MANA_STEAL({ DamageHandler.manaStealCD }),
+        ROOT({ DamageHandler.rootCD }),
+        SLOW({ DamageHandler.slowCD });
+
+        val cooldown get() = cooldownGetter()
+
+        internal val legacyKey = "bluerpg:${name.replace("_", "").toLowerCase()}cd"
+    }
+
+    internal object Storage : Capability.IStorage<CombatState> {
+        override fun readNBT(capability: Capability<CombatState>, instance: CombatState, side: EnumFacing?, nbt: NBTBase) {
+            val nbtTagCompound = nbt as? NBTTagCompound ?: return
+            val procs = nbtTagCompound.getCompoundTag("procs")
+            Proc.values().forEach { instance.procs[it.ordinal] = procs.getLong(it.name.toLowerCase()) }
+            instance.lastWeaponCooldown = nbtTagCompound.getFloat("lastWeaponCooldown")
+            instance.weaponTime = nbtTagCompound.getLong("weaponTime")
+            instance.weaponDamageTime = nbtTagCompound.getLong("weaponDamageTime")
+        }
+
+        override fun writeNBT(capability: Capability<CombatState>, instance: CombatState, side: EnumFacing?): NBTBase {
+            return NBTTagCompound().also {
+                val procs = NBTTagCompound()
+                Proc.values().forEach { p -> procs.setLong(p.name.toLowerCase(), instance.procs[p.ordinal]) }
+                it.setTag("procs", procs)
+                it.setFloat("lastWeaponCooldown", instance.lastWeaponCooldown)
+                it.setLong("weaponTime", instance.weaponTime)
+                it.setLong("weaponDamageTime", instance.weaponDamageTime)
+            }
+        }
+    }
+
+    companion object {
+        @Key
+        val KEY = ResourceLocation(BlueRPG.MODID, "combat_state")
+
+        @CapabilityInject(CombatState::class)
+        lateinit var Capability: Capability<CombatState>
+            internal set
+
+        private const val LEGACY_LAST_WEAPON_CD = "bluerpg:lastweaponcd"
+        private const val LEGACY_WEAPON_TIME = "bluerpg:weapontime"
+        private const val LEGACY_WEAPON_DAMAGE_TIME = "bluerpg:weapondamagetime"
+        private const val LEGACY_CUSTOM_ATTACK = "bluerpg:customAttackProcessing"
+    }
+}
+
+val EntityPlayer.combatState get() = this.getCapability(CombatState.Capability, null)!!
@@ -22,10 +22,12 @@ import be.bluexin.rpg.devutil.allowBlock
 import be.bluexin.rpg.devutil.allowParry
 import be.bluexin.rpg.gear.MeleeWeaponItem
 import be.bluexin.rpg.gear.WeaponAttribute
+import be.bluexin.rpg.skills.TargetingUtils
 import be.bluexin.rpg.stats.FixedStat
 import be.bluexin.rpg.stats.SecondaryStat
 import be.bluexin.rpg.stats.get
 import be.bluexin.rpg.stats.mana
+import be.bluexin.rpg.stats.stats
 import be.bluexin.saomclib.capabilities.getPartyCapability
 import be.bluexin.saomclib.onServer
 import com.teamwizardry.librarianlib.features.config.ConfigIntRange
@@ -87,29 +89,20 @@ object DamageHandler {
     var slowCD = 100
         internal set
 
-    fun handleCustomAttack(player: EntityPlayer) { // TODO: optimize this (see info in liblib with `azerty` marker)
+    fun handleCustomAttack(player: EntityPlayer) {
         player.world onServer {
-            val t = player.entityData
-            t.setBoolean("bluerpg:customAttackProcessing", true)
-            val aoeRadius = player[WeaponAttribute.ANGLE].toInt()
-            val targets: MutableSet<Entity> = LinkedHashSet()
+            val combat = player.combatState
+            combat.customAttackProcessing = true
+            val angle = player[WeaponAttribute.ANGLE]
             val reach = player[WeaponAttribute.RANGE]
-            if (aoeRadius > 0) {
-                val yaw = player.rotationYaw
-                for (i in (yaw.toInt() - aoeRadius / 2)..(yaw.toInt() + aoeRadius / 2) step 15) {
-                    player.rotationYaw = i.toFloat()
-                    val target = RaycastUtils.getEntityLookedAt(player, reach)
-                    if (target != null) targets += target
-                }
-                player.rotationYaw = yaw
-            } else {
-                val target = RaycastUtils.getEntityLookedAt(player, reach)
-                if (target != null) targets += target
-            }
+            val targets = if (angle > 0) TargetingUtils.sweep(
+                player.world, Entity::class.java, player.getPositionEyes(1f), player.lookVec, reach, angle,
+                flat = true, exclude = player
+            ) { it !== player.ridingEntity } else listOfNotNull(RaycastUtils.getEntityLookedAt(player, reach))
             targets.forEach {
                 player.attackTargetEntityWithCurrentItem(it)
             }
-            t.setBoolean("bluerpg:customAttackProcessing", false)
+            combat.customAttackProcessing = false
         }
     }
 
@@ -128,25 +121,25 @@ object DamageHandler {
 
                 val source = RpgDamageSource(s)
                 val player = source.immediateSource as EntityPlayer
-                val t = player.entityData
+                val stats = player.stats.snapshot
+                val combat = player.combatState
                 var damage = event.amount.toDouble()
 
                 if (player.heldItemMainhand.item is MeleeWeaponItem) {
-                    val minD = player[FixedStat.BASE_DAMAGE]
-                    val maxD = player[FixedStat.MAX_DAMAGE]
+                    val minD = stats[FixedStat.BASE_DAMAGE]
+                    val maxD = stats[FixedStat.MAX_DAMAGE]
                     val r = max(1.0, maxD - minD)
-                    damage += (if (minD == maxD) minD else RNG.nextDouble() * r + minD) * t.getFloat("bluerpg:lastweaponcd")
+                    damage += (if (minD == maxD) minD else RNG.nextDouble() * r + minD) * combat.lastWeaponCooldown
                 }
 
-                if (RNG.nextDouble() <= player[SecondaryStat.CRIT_CHANCE]) {
-                    damage *= 1.0 + player[SecondaryStat.CRIT_DAMAGE]
+                if (RNG.nextDouble() <= stats[SecondaryStat.CRIT_CHANCE]) {
+                    damage *= 1.0 + stats[SecondaryStat.CRIT_DAMAGE]
                 }
 
-                damage *= 1.0 + player[SecondaryStat.INCREASED_DAMAGE]
+                damage *= 1.0 + stats[SecondaryStat.INCREASED_DAMAGE]
 
-                val lastTime = t.getLong("bluerpg:weapondamagetime")
-                if (lastTime != player.world.totalWorldTime) {
-                    t.setLong("bluerpg:weapondamagetime", player.world.totalWorldTime)
+                if (combat.weaponDamageTime != player.world.totalWorldTime) {
+                    combat.weaponDamageTime = player.world.totalWorldTime
                     player.heldItemMainhand.damageItem(1, player)
                 }
 
@@ -173,20 +166,19 @@ object DamageHandler {
         val time = target.world.totalWorldTime
         val attacker = event.source.trueSource as? EntityLivingBase
         if (!event.source.isUnblockable && target is EntityPlayer) {
-            val tags = target.entityData
+            val stats = target.stats.snapshot
+            val combat = target.combatState
 
-            if (tags.getLong("bluerpg:reflectcd") <= time - reflectCD && RNG.nextDouble() <= target[SecondaryStat.REFLECT]) {
+            if (combat.tryProc(CombatState.Proc.REFLECT, time, stats[SecondaryStat.REFLECT])) {
                 event.isCanceled = true
-                tags.setLong("bluerpg:reflectcd", time)
                 attacker?.attackEntityFrom(
                     DamageSource.causeThornsDamage(target), event.amount
                 )
                 return
             }
 
-            if (target.allowBlock && tags.getLong("bluerpg:blockcd") <= time - blockCD && RNG.nextDouble() <= target[SecondaryStat.BLOCK]) {
+            if (target.allowBlock && combat.tryProc(CombatState.Proc.BLOCK, time, stats[SecondaryStat.BLOCK])) {
                 event.isCanceled = true
-                tags.setLong("bluerpg:blockcd", time)
                 val pct = event.amount / target.maxHealth
                 if (pct >= 0.25f) {
                     target.addPotionEffect(PotionEffect(MobEffects.SLOWNESS, 60, 1))
@@ -196,46 +188,41 @@ object DamageHandler {
                 return
             }
 
-            if (tags.getLong("bluerpg:dodgecd") <= time - dodgeCD && RNG.nextDouble() <= target[SecondaryStat.DODGE]) {
+            if (combat.tryProc(CombatState.Proc.DODGE, time, stats[SecondaryStat.DODGE])) {
                 event.isCanceled = true
-                tags.setLong("bluerpg:dodgecd", time)
                 return
             }
 
-            if (target.allowParry && tags.getLong("bluerpg:parrycd") <= time - parryCD && RNG.nextDouble() <= target[SecondaryStat.PARRY]) {
+            if (target.allowParry && combat.tryProc(CombatState.Proc.PARRY, time, stats[SecondaryStat.PARRY])) {
                 event.isCanceled = true
-                tags.setLong("bluerpg:parrycd", time)
                 damage *= 0.75
             }
 
-            damage *= 1.0 - target[FixedStat.ARMOR]
+            damage *= 1.0 - stats[FixedStat.ARMOR]
 
             if (attacker is EntityPlayer) {
-                damage *= 1.0 - target[SecondaryStat.RESISTANCE]
+                damage *= 1.0 - stats[SecondaryStat.RESISTANCE]
             }
         }
 
         if (attacker is EntityPlayer) {
-            val atags = attacker.entityData
+            val stats = attacker.stats.snapshot
+            val combat = attacker.combatState
 
-            if (atags.getLong("bluerpg:lifestealcd") <= time - lifeStealCD && RNG.nextDouble() <= attacker[SecondaryStat.LIFE_STEAL_CHANCE]) {
-                attacker.heal((damage * attacker[SecondaryStat.LIFE_STEAL]).toFloat())
-                atags.setLong("bluerpg:lifestealcd", time)
+            if (combat.tryProc(CombatState.Proc.LIFE_STEAL, time, stats[SecondaryStat.LIFE_STEAL_CHANCE])) {
+                attacker.heal((damage * stats[SecondaryStat.LIFE_STEAL]).toFloat())
             }
 
-            if (atags.getLong("bluerpg:manastealcd") <= time - manaStealCD && RNG.nextDouble() <= attacker[SecondaryStat.MANA_LEECH_CHANCE]) {
-                attacker.mana += (damage * attacker[SecondaryStat.MANA_LEECH]).toFloat()
-                atags.setLong("bluerpg:manastealcd", time)
+            if (combat.tryProc(CombatState.Proc.MANA_STEAL, time, stats[SecondaryStat.MANA_LEECH_CHANCE])) {
+                attacker.mana += (damage * stats[SecondaryStat.MANA_LEECH]).toFloat()
             }
 
-            if (atags.getLong("bluerpg:rootcd") <= time - rootCD && RNG.nextDouble() <= attacker[SecondaryStat.ROOT]) {
+            if (combat.tryProc(CombatState.Proc.ROOT, time, stats[SecondaryStat.ROOT])) {
                 target.addPotionEffect(PotionEffect(MobEffects.SLOWNESS, 60, 98))
-                atags.setLong("bluerpg:rootcd", time)
             }
 
-            if (atags.getLong("bluerpg:slowcd") <= time - slowCD && RNG.nextDouble() <= attacker[SecondaryStat.SLOW]) {
+            if (combat.tryProc(CombatState.Proc.SLOW, time, stats[SecondaryStat.SLOW])) {
                 target.addPotionEffect(PotionEffect(MobEffects.SLOWNESS, 100, 1))
-                atags.setLong("bluerpg:slowcd", time)
             }
         }
 
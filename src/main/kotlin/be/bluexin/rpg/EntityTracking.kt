@@ -0,0 +1,263 @@
+/*
+ * Copyright (C) 2019.  Arnaud 'Bluexin' Solé
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package be.bluexin.rpg
+
+import be.bluexin.rpg.devutil.TickWheel
+import be.bluexin.rpg.gear.RPGItemEntity
+import be.bluexin.rpg.gear.RpgArrowEntity
+import be.bluexin.rpg.gear.WandProjectileEntity
+import be.bluexin.rpg.pets.PetEntity
+import be.bluexin.rpg.skills.SkillProjectileEntity
+import com.teamwizardry.librarianlib.features.config.ConfigIntRange
+import com.teamwizardry.librarianlib.features.config.ConfigProperty
+import io.netty.channel.ChannelHandler
+import io.netty.channel.ChannelHandlerContext
+import io.netty.channel.ChannelOutboundHandlerAdapter
+import io.netty.channel.ChannelPromise
+import net.minecraft.entity.Entity
+import net.minecraft.entity.player.EntityPlayerMP
+import net.minecraft.network.play.server.*
+import net.minecraft.util.ResourceLocation
+import net.minecraftforge.common.DimensionManager
+import net.minecraftforge.event.entity.EntityJoinWorldEvent
+import net.minecraftforge.fml.common.Mod
+import net.minecraftforge.fml.common.eventhandler.SubscribeEvent
+import net.minecraftforge.fml.common.gameevent.PlayerEvent
+import net.minecraftforge.fml.common.registry.EntityRegistry
+import net.minecraftforge.fml.relauncher.ReflectionHelper
+import java.lang.reflect.Field
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * Tracking profiles of the BlueRPG entities, and counters of the tracking packets sent for them.
+ *
+ * Forge tracks each entity type with a fixed range, update period and velocity flag, set here from config.
+ * The vanilla tracker only sends movement when an entity actually moved (plus a refresh every few seconds),
+ * so with a sensible period settled items and idle pets cost next to nothing.
+ * Skill projectiles carry their motion in their spawn data and are extrapolated by the client,
+ * only getting an occasional position correction.
+ */
+@Mod.EventBusSubscriber(modid = BlueRPG.MODID)
+object EntityTracking {
+
+    /**
+     * Tracking settings of one entity type.
+     */
+    enum class Profile(val entity: Class<out Entity>, val key: String) {
+        RPG_ARROW(RpgArrowEntity::class.java, "entity_rpg_arrow"),
+        WAND_PROJECTILE(WandProjectileEntity::class.java, "entity_wand_projectile"),
+        SKILL_PROJECTILE(SkillProjectileEntity::class.java, "entity_skill_projectile"),
+        PET(PetEntity::class.java, "entity_pet"),
+        RPG_ITEM(RPGItemEntity::class.java, "entity_rpg_item");
+
+        val range
+            get() = when (this) {
+                RPG_ARROW -> arrowRange
+                WAND_PROJECTILE -> wandProjectileRange
+                SKILL_PROJECTILE -> skillProjectileRange
+                PET -> petRange
+                RPG_ITEM -> itemRange
+            }
+
+        val frequency
+            get() = when (this) {
+                RPG_ARROW -> arrowFrequency
+                WAND_PROJECTILE -> wandProjectileFrequency
+                SKILL_PROJECTILE -> skillProjectileFrequency
+                PET -> petFrequency
+                RPG_ITEM -> itemFrequency
+            }
+
+        /**
+         * Skill projectiles are extrapolated client side from the motion in their spawn data.
+         */
+        val velocityUpdates get() = this != SKILL_PROJECTILE
+
+        private val counter = AtomicLong()
+
+        /**
+         * Tracking packets sent for entities of this type since the server started.
+         */
+        val packets get() = counter.get()
+
+        internal fun count() = counter.incrementAndGet()
+
+        internal fun reset() = counter.set(0)
+    }
+
+    @ConfigIntRange(1, 256)
+    @ConfigProperty("tracking", "Tracking range of RPG arrows, in blocks")
+    var arrowRange = 64
+        internal set
+
+    @ConfigIntRange(1, Int.MAX_VALUE)
+    @ConfigProperty("tracking", "Ticks between position updates of RPG arrows")
+    var arrowFrequency = 20
+        internal set
+
+    @ConfigIntRange(1, 256)
+    @ConfigProperty("tracking", "Tracking range of wand projectiles, in blocks")
+    var wandProjectileRange = 64
+        internal set
+
+    @ConfigIntRange(1, Int.MAX_VALUE)
+    @ConfigProperty("tracking", "Ticks between position updates of wand projectiles")
+    var wandProjectileFrequency = 10
+        internal set
+
+    @ConfigIntRange(1, 256)
+    @ConfigProperty("tracking", "Tracking range of skill projectiles, in blocks")
+    var skillProjectileRange = 64
+        internal set
+
+    @ConfigIntRange(1, Int.MAX_VALUE)
+    @ConfigProperty("tracking", "Ticks between position corrections of skill projectiles, which clients extrapolate")
+    var skillProjectileFrequency = 40
+        internal set
+
+    @ConfigIntRange(1, 256)
+    @ConfigProperty("tracking", "Tracking range of pets, in blocks")
+    var petRange = 80
+        internal set
+
+    @ConfigIntRange(1, Int.MAX_VALUE)
+    @ConfigProperty("tracking", "Ticks between position updates of pets")
+    var petFrequency = 3
+        internal set
+
+    @ConfigIntRange(1, 256)
+    @ConfigProperty("tracking", "Tracking range of dropped RPG items, in blocks")
+    var itemRange = 64
+        internal set
+
+    @ConfigIntRange(1, Int.MAX_VALUE)
+    @ConfigProperty("tracking", "Ticks between position updates of dropped RPG items")
+    var itemFrequency = 20
+        internal set
+
+    private val profiles = Profile.values()
+
+    internal fun registerEntities(mod: Any) {
+        profiles.forEachIndexed { i, profile ->
+            EntityRegistry.registerModEntity(
+                ResourceLocation(BlueRPG.MODID, profile.key),
+                profile.entity,
+                profile.key,
+                i + 1,
+                mod,
+                profile.range,
+                profile.frequency,
+                profile.velocityUpdates
+            )
+        }
+    }
+
+    private fun profile(entity: Entity) = profiles.firstOrNull { it.entity.isInstance(entity) }
+
+    //region Counters
+
+    private class Tracked(val profile: Profile, val dimension: Int)
+
+    /**
+     * Tracked BlueRPG entities by id, read from the network threads.
+     */
+    private val tracked = ConcurrentHashMap<Int, Tracked>()
+
+    private var sweepTask: TickWheel.Task? = null
+
+    /**
+     * Entity id fields of the tracking packets, by packet class.
+     */
+    private val idFields: Map<Class<*>, Field> by lazy {
+        val fields = HashMap<Class<*>, Field>()
+        fun find(clazz: Class<*>, vararg names: String) = try {
+            fields[clazz] = ReflectionHelper.findField(clazz, *names)
+        } catch (e: Exception) {
+            BlueRPG.LOGGER.warn("Unable to count ${clazz.simpleName} tracking packets", e)
+        }
+        find(SPacketEntity::class.java, "field_149074_a", "entityId")
+        find(SPacketEntityTeleport::class.java, "field_149458_a", "entityId")
+        find(SPacketEntityVelocity::class.java, "field_149417_a", "entityID")
+        find(SPacketEntityHeadLook::class.java, "field_149384_a", "entityId")
+        find(SPacketEntityMetadata::class.java, "field_149379_a", "entityId")
+        fields
+    }
+
+    /**
+     * Counts the tracking packets of BlueRPG entities on their way out.
+     */
+    @ChannelHandler.Sharable
+    private object Counter : ChannelOutboundHandlerAdapter() {
+        override fun write(ctx: ChannelHandlerContext, msg: Any, promise: ChannelPromise) {
+            if (tracked.isNotEmpty()) {
+                val field = idFields[if (msg is SPacketEntity) SPacketEntity::class.java else msg.javaClass]
+                if (field != null) tracked[field.getInt(msg)]?.profile?.count()
+            }
+            super.write(ctx, msg, promise)
+        }
+    }
+
+    @SubscribeEvent
+    @JvmStatic
+    fun playerLoggedIn(event: PlayerEvent.PlayerLoggedInEvent) {
+        val pipeline = (event.player as? EntityPlayerMP)?.connection?.netManager?.channel()?.pipeline() ?: return
+        if (pipeline.get(HANDLER) == null) pipeline.addLast(HANDLER, Counter)
+    }
+
+    @SubscribeEvent
+    @JvmStatic
+    fun entityJoinWorld(event: EntityJoinWorldEvent) {
+        if (event.world.isRemote) return
+        val profile = profile(event.entity) ?: return
+        tracked[event.entity.entityId] = Tracked(profile, event.world.provider.dimension)
+        if (sweepTask == null) sweepTask = TickWheel.every("tracking sweep", SWEEP_PERIOD, action = ::sweep)
+    }
+
+    /**
+     * Forgets the entities that left their world.
+     */
+    private fun sweep() {
+        val it = tracked.entries.iterator()
+        while (it.hasNext()) {
+            val (id, t) = it.next()
+            val e = DimensionManager.getWorld(t.dimension)?.getEntityByID(id)
+            if (e == null || e.isDead) it.remove()
+        }
+    }
+
+    /**
+     * Counters of every profile.
+     */
+    fun counters(): List<Profile> = profiles.asList()
+
+    /**
+     * Drops the tracked entities and resets the counters. Called when the server stops, along with [TickWheel.clear].
+     */
+    internal fun clear() {
+        tracked.clear()
+        sweepTask = null
+        profiles.forEach(Profile::reset)
+    }
+
+    private const val HANDLER = "${BlueRPG.MODID}:tracking_counter"
+
+    private const val SWEEP_PERIOD = 600
+
+    //endregion
+}
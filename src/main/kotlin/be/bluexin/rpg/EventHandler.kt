@@ -23,6 +23,7 @@ import be.bluexin.rpg.classes.PlayerClass
 import be.bluexin.rpg.classes.PlayerClassRegistry
 import be.bluexin.rpg.classes.playerClass
 import be.bluexin.rpg.devutil.Textures
+import be.bluexin.rpg.devutil.TickWheel
 import be.bluexin.rpg.devutil.get
 import be.bluexin.rpg.events.*
 import be.bluexin.rpg.extensions.RPGCombatTracker
@@ -57,6 +58,7 @@ import net.minecraft.client.renderer.tileentity.TileEntityItemStackRenderer
 import net.minecraft.entity.EntityLivingBase
 import net.minecraft.entity.item.EntityPainting
 import net.minecraft.entity.player.EntityPlayer
+import net.minecraft.entity.player.EntityPlayerMP
 import net.minecraft.inventory.ContainerPlayer
 import net.minecraft.inventory.EntityEquipmentSlot
 import net.minecraft.item.ItemStack
@@ -81,10 +83,12 @@ import net.minecraftforge.fml.common.Mod
 import net.minecraftforge.fml.common.eventhandler.Event
 import net.minecraftforge.fml.common.eventhandler.EventPriority
 import net.minecraftforge.fml.common.eventhandler.SubscribeEvent
+import net.minecraftforge.fml.common.gameevent.PlayerEvent
 import net.minecraftforge.fml.common.gameevent.TickEvent
 import net.minecraftforge.fml.relauncher.Side
 import net.minecraftforge.fml.relauncher.SideOnly
 import org.lwjgl.opengl.GL11
+import java.util.UUID
 import kotlin.math.min
 
 // TODO: Split by feature
@@ -102,29 +106,62 @@ object CommonEventHandler {
         if (event.phase != TickEvent.Phase.END) return
         event.player.cooldowns.tick()
         event.player.world onServer {
-            val stats = event.player.stats
-            if (stats.dirty) stats.sync()
             if (event.player.ticksExisted > 10) {
                 if (event.player.health > event.player.maxHealth) event.player.health = event.player.maxHealth
                 if (event.player.mana > event.player.maxMana) event.player.mana = event.player.maxMana
             }
-            val time = event.player.world.totalWorldTime
-            if (time % 10 == 0L) {
-                event.player.playerClass.iterator().asSequence().mapNotNull { SkillRegistry[it.key] to it.value }
-                    .filter { (skill, _) -> skill?.passive == true }
-                    .forEach { (skill, level) ->
-                        skill?.processor?.cast(SkillContext(event.player, level))
-                    }
-                if (time % 100 == 0L) {
-                    val combat = event.player.combatTracker.inCombat
-                    event.player.heal((event.player[SecondaryStat.REGEN] * if (combat) 0.2 else 1.0).toFloat())
-                    event.player.mana += ((event.player[SecondaryStat.SPIRIT] * if (combat) 0.2 else 1.0).toFloat()) // TODO: event
+        }
+    }
+
+    private val playerTasks = HashMap<UUID, List<TickWheel.Task>>()
+
+    /**
+     * Registers the periodic work of [player] on the [TickWheel], replacing the tasks of its previous entity if any.
+     * All of a player's tasks share the same phase, spreading players over the periods.
+     */
+    private fun schedulePlayerTasks(player: EntityPlayerMP) {
+        playerTasks.remove(player.persistentID)?.forEach(TickWheel.Task::cancel)
+        val phase = PassiveSkills.phase(player)
+        playerTasks[player.persistentID] = listOf(
+            TickWheel.every("passives", PassiveSkills.PERIOD, phase) {
+                if (player.isEntityAlive) PassiveSkills.cast(player)
+            },
+            TickWheel.every("regen", 100, phase) {
+                if (player.isEntityAlive) {
+                    val combat = player.combatTracker.inCombat
+                    player.heal((player[SecondaryStat.REGEN] * if (combat) 0.2 else 1.0).toFloat())
+                    player.mana += ((player[SecondaryStat.SPIRIT] * if (combat) 0.2 else 1.0).toFloat()) // TODO: event
                 }
+            },
+            TickWheel.every("pet eggs", 20, phase) {
+                (player.inventory as? RPGInventory)?.updateEggs()
             }
+        )
+    }
 
-        }
+    @SubscribeEvent
+    @JvmStatic
+    fun playerLoggedIn(event: PlayerEvent.PlayerLoggedInEvent) {
+        (event.player as? EntityPlayerMP)?.let(::schedulePlayerTasks)
     }
 
+    @SubscribeEvent
+    @JvmStatic
+    fun playerRespawn(event: PlayerEvent.PlayerRespawnEvent) {
+        (event.player as? EntityPlayerMP)?.let(::schedulePlayerTasks)
+    }
+
+    @SubscribeEvent
+    @JvmStatic
+    fun playerLoggedOut(event: PlayerEvent.PlayerLoggedOutEvent) {
+        playerTasks.remove(event.player.persistentID)?.forEach(TickWheel.Task::cancel)
+    }
+
+    /**
+     * Forgets the player tasks. Called when the server stops, along with [TickWheel.clear].
+     */
+    internal fun clearPlayerTasks() = playerTasks.clear()
+
     @SubscribeEvent
     @JvmStatic
     fun combatEvent(event: CombatEvent) {
@@ -171,15 +208,13 @@ object CommonEventHandler {
     @SubscribeEvent
     @JvmStatic
     fun postChangeGear(event: LivingEquipmentPostChangeEvent) {
+        // Enabled flags are then updated by the RequirementEngine
         (event.entityLiving as? EntityPlayer)?.apply {
             equipmentAndArmor.forEach {
                 val item = it.item
-                if (item is IRPGGear) {
-                    if (item.gearSlot == event.slot && (item is ArmorItem || item is OffHandItem)) {
-                        val stats = it.stats!!
-                        if (stats.bound == null && stats.binding == Binding.BOE) it.stats!!.bindTo(this)
-                    }
-                    it.enabled = it.requirementMet(this)
+                if (item is IRPGGear && item.gearSlot == event.slot && (item is ArmorItem || item is OffHandItem)) {
+                    val stats = it.stats!!
+                    if (stats.bound == null && stats.binding == Binding.BOE) stats.bindTo(this)
                 }
             }
         }
@@ -223,7 +258,7 @@ object CommonEventHandler {
     @JvmStatic
     fun knockBack(event: LivingKnockBackEvent) {
         val a = event.attacker as? EntityPlayer ?: return
-        event.strength += a[WeaponAttribute.KNOCKBACK].toFloat() * a.entityData.getFloat("bluerpg:lastweaponcd")
+        event.strength += a[WeaponAttribute.KNOCKBACK].toFloat() * a.combatState.lastWeaponCooldown
     }
 
     @SubscribeEvent
@@ -363,6 +398,7 @@ object CommonEventHandler {
         val e = event.entity
         if (e is EntityLivingBase) e.maxHurtResistantTime = 0
         if (protectPaintings && e is EntityPainting) e.setEntityInvulnerable(true)
+        if (e is EntityPlayer) e.world onServer { e.combatState.migrateLegacy() }
     }
 
     @SubscribeEvent(priority = EventPriority.HIGHEST)
@@ -398,9 +434,9 @@ object CommonEventHandler {
         if (autoOpen) s.filter { it.item.item is GearTokenItem }.forEach {
             it.item = it.item.tokenStats?.open(e.entity.world, null) ?: it.item
         }
-        if (autoIdentifyDrop) s.filter { it.item.item is IRPGGear }.forEach {
-            it.item.stats?.generate(e.entity.world, null)
-        }
+        if (autoIdentifyDrop) GearBatchGenerator.generate(
+            s.filter { it.item.item is IRPGGear }.mapNotNull { it.item.stats }.toList(), e.entity.world, null
+        )
     }
 }
 
@@ -23,9 +23,7 @@ import be.bluexin.rpg.classes.playerClass
 import be.bluexin.rpg.devutil.get
 import be.bluexin.rpg.inventory.RPGInventory
 import be.bluexin.rpg.pets.EggData
-import be.bluexin.rpg.skills.SkillData
 import be.bluexin.rpg.skills.SkillItem.skill
-import be.bluexin.rpg.skills.SkillRegistry
 import be.bluexin.rpg.skills.cooldowns
 import be.bluexin.rpg.stats.*
 import be.bluexin.rpg.utilities.DynamicData
@@ -36,6 +34,8 @@ import com.teamwizardry.librarianlib.features.kotlin.Minecraft
 import com.teamwizardry.librarianlib.features.kotlin.isNotEmpty
 import com.teamwizardry.librarianlib.features.network.PacketBase
 import com.teamwizardry.librarianlib.features.saving.Save
+import io.netty.buffer.ByteBuf
+import net.minecraft.network.PacketBuffer
 import net.minecraft.util.EnumActionResult
 import net.minecraft.util.ResourceLocation
 import net.minecraft.util.math.BlockPos
@@ -121,22 +121,54 @@ class PacketAttack : PacketBase() {
     override fun handle(ctx: MessageContext) = DamageHandler.handleCustomAttack(ctx.serverHandler.player)
 }
 
+/**
+ * Cooldown changes of the client player during one tick.
+ * A duration of 0 clears the cooldown, otherwise the client starts it `elapsed` ticks ago and expires it on its own.
+ */
 @PacketRegister(Side.CLIENT)
-class PacketCooldown(skill: SkillData?, ticks: Int) : PacketBase() {
-    @Save
-    var skill = if (skill == null) 0 else SkillRegistry.getId(skill)
-        internal set
+class PacketCooldowns : PacketBase() {
+    private var keys = IntArray(4)
+    private var durations = IntArray(4)
+    private var elapsed = IntArray(4)
+    private var size = 0
+
+    internal fun add(key: Int, duration: Int, elapsed: Int) {
+        if (size == keys.size) {
+            keys = keys.copyOf(size * 2)
+            durations = durations.copyOf(size * 2)
+            this.elapsed = this.elapsed.copyOf(size * 2)
+        }
+        keys[size] = key
+        durations[size] = duration
+        this.elapsed[size++] = elapsed
+    }
 
-    @Save
-    var ticks = ticks
-        internal set
+    override fun writeCustomBytes(buf: ByteBuf) {
+        val pb = PacketBuffer(buf)
+        pb.writeVarInt(size)
+        for (i in 0 until size) {
+            pb.writeVarInt(keys[i])
+            pb.writeVarInt(durations[i])
+            if (durations[i] > 0) pb.writeVarInt(elapsed[i])
+        }
+    }
 
-    @Suppress("unused")
-    internal constructor() : this(null, 0)
+    override fun readCustomBytes(buf: ByteBuf) {
+        val pb = PacketBuffer(buf)
+        repeat(pb.readVarInt()) {
+            val key = pb.readVarInt()
+            val duration = pb.readVarInt()
+            add(key, duration, if (duration > 0) pb.readVarInt() else 0)
+        }
+    }
 
-    override fun handle(ctx: MessageContext) =
-        if (ticks == 0) Minecraft().player.cooldowns -= SkillRegistry.getValue(skill)!!
-        else Minecraft().player.cooldowns[SkillRegistry.getValue(skill)!!] = ticks
+    override fun handle(ctx: MessageContext) {
+        val cooldowns = Minecraft().player.cooldowns
+        for (i in 0 until size) {
+            if (durations[i] == 0) cooldowns.remove(keys[i])
+            else cooldowns.set(keys[i], durations[i], elapsed[i])
+        }
+    }
 }
 
 @PacketRegister(Side.SERVER)
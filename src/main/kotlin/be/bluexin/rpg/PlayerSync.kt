@@ -0,0 +1,262 @@
+/*
+ * Copyright (C) 2019.  Arnaud 'Bluexin' Solé
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package be.bluexin.rpg
+
+import be.bluexin.rpg.classes.playerClass
+import be.bluexin.rpg.stats.Stat
+import be.bluexin.rpg.stats.StatIds
+import be.bluexin.rpg.stats.stats
+import com.teamwizardry.librarianlib.features.autoregister.PacketRegister
+import com.teamwizardry.librarianlib.features.kotlin.Minecraft
+import com.teamwizardry.librarianlib.features.network.PacketBase
+import com.teamwizardry.librarianlib.features.network.PacketHandler
+import io.netty.buffer.ByteBuf
+import net.minecraft.entity.player.EntityPlayer
+import net.minecraft.entity.player.EntityPlayerMP
+import net.minecraft.network.PacketBuffer
+import net.minecraft.util.ResourceLocation
+import net.minecraftforge.fml.common.Mod
+import net.minecraftforge.fml.common.eventhandler.SubscribeEvent
+import net.minecraftforge.fml.common.gameevent.PlayerEvent
+import net.minecraftforge.fml.common.gameevent.TickEvent
+import net.minecraftforge.fml.common.network.simpleimpl.MessageContext
+import net.minecraftforge.fml.relauncher.Side
+import java.util.*
+
+/**
+ * Coalesces changes to [be.bluexin.rpg.stats.PlayerStats] and [be.bluexin.rpg.classes.PlayerClassCollection] into
+ * at most one [PacketPlayerSync] per player per tick, holding only the fields that changed.
+ * Full capability syncs only happen on login, respawn and dimension change.
+ *
+ * Mana is a managed value, which vanilla already syncs at most once per tick.
+ */
+@Mod.EventBusSubscriber(modid = BlueRPG.MODID)
+object PlayerSync {
+
+    enum class Field {
+        LEVEL,
+        EXP,
+        ATTRIBUTE_POINTS,
+        STATS,
+        SKILL_POINTS,
+        SKILLS,
+        SELECTED_SKILLS,
+        CLASSES;
+
+        internal val bit = 1 shl ordinal
+    }
+
+    private class Pending {
+        var mask = 0
+        val stats = HashSet<Stat>()
+        val skills = HashSet<ResourceLocation>()
+    }
+
+    private val pending = IdentityHashMap<EntityPlayerMP, Pending>()
+
+    /**
+     * Marks [field] of [player] for the next flush. Does nothing client side.
+     */
+    fun mark(player: EntityPlayer?, field: Field) {
+        pending(player)?.let { it.mask = it.mask or field.bit }
+    }
+
+    fun markStat(player: EntityPlayer?, stat: Stat) {
+        pending(player)?.let {
+            it.mask = it.mask or Field.STATS.bit
+            it.stats += stat
+        }
+    }
+
+    fun markSkill(player: EntityPlayer?, skill: ResourceLocation) {
+        pending(player)?.let {
+            it.mask = it.mask or Field.SKILLS.bit
+            it.skills += skill
+        }
+    }
+
+    private fun pending(player: EntityPlayer?) =
+        if (player is EntityPlayerMP) pending.getOrPut(player, ::Pending) else null
+
+    /**
+     * Sends the whole capabilities of [player], dropping any pending delta.
+     */
+    fun fullSync(player: EntityPlayerMP) {
+        pending.remove(player)
+        player.stats.sync()
+        player.playerClass.sync()
+    }
+
+    @SubscribeEvent
+    @JvmStatic
+    fun serverTick(event: TickEvent.ServerTickEvent) {
+        if (event.phase != TickEvent.Phase.END || pending.isEmpty()) return
+        pending.forEach { (player, p) ->
+            if (player.hasDisconnected()) return@forEach
+            val packet = PacketPlayerSync(update(player, p))
+            PacketHandler.NETWORK.sendTo(packet, player)
+            PacketHandler.NETWORK.sendToAllTracking(packet, player)
+        }
+        pending.clear()
+    }
+
+    @SubscribeEvent
+    @JvmStatic
+    fun playerLoggedIn(event: PlayerEvent.PlayerLoggedInEvent) {
+        (event.player as? EntityPlayerMP)?.let(::fullSync)
+    }
+
+    @SubscribeEvent
+    @JvmStatic
+    fun playerRespawn(event: PlayerEvent.PlayerRespawnEvent) {
+        (event.player as? EntityPlayerMP)?.let(::fullSync)
+    }
+
+    @SubscribeEvent
+    @JvmStatic
+    fun playerChangedDimension(event: PlayerEvent.PlayerChangedDimensionEvent) {
+        (event.player as? EntityPlayerMP)?.let(::fullSync)
+    }
+
+    @SubscribeEvent
+    @JvmStatic
+    fun playerLoggedOut(event: PlayerEvent.PlayerLoggedOutEvent) {
+        pending.remove(event.player)
+    }
+
+    private fun update(player: EntityPlayerMP, p: Pending) = Update().apply {
+        entity = player.entityId
+        mask = p.mask
+        val stats = player.stats
+        if (Field.LEVEL in this) level = stats.level.level_a
+        if (Field.EXP in this) exp = stats.level.exp_a
+        if (Field.ATTRIBUTE_POINTS in this) attributePoints = stats.attributePoints
+        p.stats.forEach { this.stats[it] = stats.baseStats[it] }
+        val classes = player.playerClass
+        if (Field.SKILL_POINTS in this) skillPoints = classes.skillPoints
+        p.skills.forEach { skills[it] = classes[it] }
+        if (Field.SELECTED_SKILLS in this) selectedSkills = classes.selectedSkillKeys()
+        if (Field.CLASSES in this) this.classes = classes.classKeys()
+    }
+
+    /**
+     * Applies a received [Update] to the capabilities of [player], bypassing events.
+     */
+    private fun apply(player: EntityPlayer, update: Update) {
+        val stats = player.stats
+        if (Field.LEVEL in update || Field.EXP in update) stats.level.applySync(
+            if (Field.LEVEL in update) update.level else stats.level.level_a,
+            if (Field.EXP in update) update.exp else stats.level.exp_a
+        )
+        if (Field.ATTRIBUTE_POINTS in update) stats.attributePoints = update.attributePoints
+        update.stats.forEach { (stat, value) -> stats.baseStats.put(stat, value) }
+        if (update.mask and CLASS_FIELDS != 0) player.playerClass.applySync(update)
+    }
+
+    private val CLASS_FIELDS =
+        Field.SKILL_POINTS.bit or Field.SKILLS.bit or Field.SELECTED_SKILLS.bit or Field.CLASSES.bit
+
+    /**
+     * Changed values of a single player. Only the fields in [mask] are meaningful.
+     */
+    class Update internal constructor() {
+        internal var entity = 0
+        internal var mask = 0
+        internal var level = 0
+        internal var exp = 0L
+        internal var attributePoints = 0
+        internal val stats = HashMap<Stat, Int>()
+        internal var skillPoints = 0
+        internal val skills = HashMap<ResourceLocation, Int>()
+        internal var selectedSkills = arrayOfNulls<ResourceLocation>(0)
+        internal var classes = arrayOfNulls<ResourceLocation>(0)
+
+        operator fun contains(field: Field) = mask and field.bit != 0
+
+        internal fun write(buf: PacketBuffer) {
+            buf.writeVarInt(entity)
+            buf.writeVarInt(mask)
+            if (Field.LEVEL in this) buf.writeVarInt(level)
+            if (Field.EXP in this) buf.writeVarLong(exp)
+            if (Field.ATTRIBUTE_POINTS in this) buf.writeVarInt(attributePoints)
+            if (Field.STATS in this) {
+                buf.writeVarInt(stats.size)
+                stats.forEach { (stat, value) ->
+                    buf.writeVarInt(StatIds.id(stat))
+                    buf.writeVarInt(value)
+                }
+            }
+            if (Field.SKILL_POINTS in this) buf.writeVarInt(skillPoints)
+            if (Field.SKILLS in this) {
+                buf.writeVarInt(skills.size)
+                skills.forEach { (skill, rank) ->
+                    buf.writeResourceLocation(skill)
+                    buf.writeVarInt(rank)
+                }
+            }
+            if (Field.SELECTED_SKILLS in this) writeKeys(buf, selectedSkills)
+            if (Field.CLASSES in this) writeKeys(buf, classes)
+        }
+
+        internal fun read(buf: PacketBuffer) {
+            entity = buf.readVarInt()
+            mask = buf.readVarInt()
+            if (Field.LEVEL in this) level = buf.readVarInt()
+            if (Field.EXP in this) exp = buf.readVarLong()
+            if (Field.ATTRIBUTE_POINTS in this) attributePoints = buf.readVarInt()
+            if (Field.STATS in this) repeat(buf.readVarInt()) {
+                val stat = StatIds[buf.readVarInt()]
+                val value = buf.readVarInt()
+                if (stat != null) stats[stat] = value
+            }
+            if (Field.SKILL_POINTS in this) skillPoints = buf.readVarInt()
+            if (Field.SKILLS in this) repeat(buf.readVarInt()) {
+                skills[buf.readResourceLocation()] = buf.readVarInt()
+            }
+            if (Field.SELECTED_SKILLS in this) selectedSkills = readKeys(buf)
+            if (Field.CLASSES in this) classes = readKeys(buf)
+        }
+
+        private fun writeKeys(buf: PacketBuffer, keys: Array<ResourceLocation?>) {
+            buf.writeVarInt(keys.size)
+            keys.forEach {
+                buf.writeBoolean(it != null)
+                if (it != null) buf.writeResourceLocation(it)
+            }
+        }
+
+        private fun readKeys(buf: PacketBuffer) =
+            Array(buf.readVarInt()) { if (buf.readBoolean()) buf.readResourceLocation() else null }
+    }
+
+    @PacketRegister(Side.CLIENT)
+    class PacketPlayerSync(private val update: Update) : PacketBase() {
+
+        @Suppress("unused")
+        internal constructor() : this(Update())
+
+        override fun writeCustomBytes(buf: ByteBuf) = update.write(PacketBuffer(buf))
+
+        override fun readCustomBytes(buf: ByteBuf) = update.read(PacketBuffer(buf))
+
+        override fun handle(ctx: MessageContext) {
+            val player = Minecraft().world?.getEntityByID(update.entity) as? EntityPlayer ?: return
+            apply(player, update)
+        }
+    }
+}
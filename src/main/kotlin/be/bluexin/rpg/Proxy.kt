@@ -21,8 +21,8 @@ package be.bluexin.rpg
 
 import be.bluexin.rpg.classes.PlayerClassCollection
 import be.bluexin.rpg.classes.PlayerClassRegistry
-import be.bluexin.rpg.devutil.AutoCapabilityStorage
 import be.bluexin.rpg.devutil.BlueRPGDataFixer
+import be.bluexin.rpg.devutil.SchemaCapabilityStorage
 import be.bluexin.rpg.devutil.registerDataSerializer
 import be.bluexin.rpg.gear.*
 import be.bluexin.rpg.inventory.RPGEnderChestContainer
@@ -52,7 +52,6 @@ import net.minecraftforge.fml.client.registry.RenderingRegistry
 import net.minecraftforge.fml.common.event.FMLInitializationEvent
 import net.minecraftforge.fml.common.event.FMLPostInitializationEvent
 import net.minecraftforge.fml.common.event.FMLPreInitializationEvent
-import net.minecraftforge.fml.common.registry.EntityRegistry
 import net.minecraftforge.fml.relauncher.ReflectionHelper
 import net.minecraftforge.fml.relauncher.Side
 import net.minecraftforge.fml.relauncher.SideOnly
@@ -86,20 +85,24 @@ open class CommonProxy : CoroutineScope {
 
         CapabilitiesHandler.registerEntityCapability(
             PlayerStats::class.java,
-            AutoCapabilityStorage()
+            SchemaCapabilityStorage(PlayerStats.Schema)
         ) { it is EntityPlayer && it !is FakePlayer }
         CapabilitiesHandler.registerEntityCapability(
             PlayerClassCollection::class.java,
-            AutoCapabilityStorage()
+            SchemaCapabilityStorage(PlayerClassCollection.Schema)
         ) { it is EntityPlayer && it !is FakePlayer }
         CapabilitiesHandler.registerEntityCapability(
             PetStorage::class.java,
-            AutoCapabilityStorage()
+            SchemaCapabilityStorage(PetStorage.Schema)
         ) { it is EntityPlayer && it !is FakePlayer }
         CapabilitiesHandler.registerEntityCapability(
             CooldownCapability::class.java,
-            AutoCapabilityStorage()
+            SchemaCapabilityStorage(CooldownCapability.Schema)
         ) { it is EntityPlayer && it !is FakePlayer }
+        CapabilitiesHandler.registerEntityCapability(
+            CombatState::class.java,
+            CombatState.Storage
+        ) { it is EntityPlayer }
 
         // Not using SAOMCLib for these because we don't want them autoregistered
         CapabilityManager.INSTANCE.register(GearStats::class.java, GearStats.Storage) { GearStats(ItemStack.EMPTY) }
@@ -150,59 +153,7 @@ open class CommonProxy : CoroutineScope {
         RPGEnderChestContainer.Companion // Classloading FTW
     }
 
-    private fun registerEntities() {
-        var id = 0
-        EntityRegistry.registerModEntity(
-            ResourceLocation(BlueRPG.MODID, "entity_rpg_arrow"),
-            RpgArrowEntity::class.java,
-            "entity_rpg_arrow",
-            ++id,
-            BlueRPG,
-            128,
-            1,
-            true
-        )
-        EntityRegistry.registerModEntity(
-            ResourceLocation(BlueRPG.MODID, "entity_wand_projectile"),
-            WandProjectileEntity::class.java,
-            "entity_wand_projectile",
-            ++id,
-            BlueRPG,
-            128,
-            1,
-            true
-        )
-        EntityRegistry.registerModEntity(
-            ResourceLocation(BlueRPG.MODID, "entity_skill_projectile"),
-            SkillProjectileEntity::class.java,
-            "entity_skill_projectile",
-            ++id,
-            BlueRPG,
-            128,
-            1,
-            true
-        )
-        EntityRegistry.registerModEntity(
-            ResourceLocation(BlueRPG.MODID, "entity_pet"),
-            PetEntity::class.java,
-            "entity_pet",
-            ++id,
-            BlueRPG,
-            128,
-            1,
-            true
-        )
-        EntityRegistry.registerModEntity(
-            ResourceLocation(BlueRPG.MODID, "entity_rpg_item"),
-            RPGItemEntity::class.java,
-            "entity_rpg_item",
-            ++id,
-            BlueRPG,
-            128,
-            1,
-            true
-        )
-    }
+    private fun registerEntities() = EntityTracking.registerEntities(BlueRPG)
 
     open fun init(event: FMLInitializationEvent) {
         runBlocking { job.children.forEach { it.join() } }
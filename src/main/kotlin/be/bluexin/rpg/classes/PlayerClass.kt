@@ -18,8 +18,10 @@
 package be.bluexin.rpg.classes
 
 import be.bluexin.rpg.BlueRPG
+import be.bluexin.rpg.PlayerSync
 import be.bluexin.rpg.devutil.*
 import be.bluexin.rpg.inventory.RPGInventory
+import be.bluexin.rpg.skills.PassiveSkills
 import be.bluexin.rpg.skills.SkillChangeEvent
 import be.bluexin.rpg.skills.SkillData
 import be.bluexin.rpg.skills.SkillItem
@@ -36,6 +38,7 @@ import com.teamwizardry.librarianlib.features.saving.SaveInPlace
 import net.minecraft.entity.player.EntityPlayer
 import net.minecraft.entity.player.EntityPlayerMP
 import net.minecraft.item.ItemStack
+import net.minecraft.nbt.NBTTagCompound
 import net.minecraft.util.ResourceLocation
 import net.minecraftforge.common.capabilities.Capability
 import net.minecraftforge.common.capabilities.CapabilityInject
@@ -133,7 +136,17 @@ class PlayerClassCollection(
     var skillPoints = 1
         set(value) {
             field = value
-            this.sync()
+            PlayerSync.mark(reference.get() as? EntityPlayer, PlayerSync.Field.SKILL_POINTS)
+        }
+
+    private var compiledPassives: Array<PassiveSkills.Entry>? = null
+
+    /**
+     * Learned passive skills, compiled on first use after a skill change.
+     */
+    internal val passives: Array<PassiveSkills.Entry>
+        get() = compiledPassives ?: PassiveSkills.compile(skills).also {
+            compiledPassives = it
         }
 
     @Deprecated("Only use trough PlayerClassCollection::get/set !!")
@@ -153,10 +166,11 @@ class PlayerClassCollection(
         if (playerClass == null || playerClass !in classesSequence) {
             this.playerClasses[index] = playerClass
             this._playerClass[index] = playerClass?.key
+            PlayerSync.mark(reference.get() as? EntityPlayer, PlayerSync.Field.CLASSES)
             // TODO: event, update base stats... or not?
             this.checkAvailableSkills()
             this.checkSelectedSkills()
-            this.sync()
+            this.changed()
         }
     }
 
@@ -166,7 +180,8 @@ class PlayerClassCollection(
 
         for (i in selectedSkills.indices) if (selectedSkills[i] == skill) selectedSkills[i] = null
         selectedSkills[index] = skill
-        this.sync()
+        PlayerSync.mark(reference.get() as? EntityPlayer, PlayerSync.Field.SELECTED_SKILLS)
+        this.changed()
     }
 
     operator fun contains(playerClass: PlayerClass) = playerClass.key in this
@@ -193,21 +208,48 @@ class PlayerClassCollection(
         return if (evt == null || (fire(evt) && evt.result != Event.Result.DENY)) {
             if (evt?.newValue ?: value != 0) skills[skill] = evt?.newValue ?: value
             else skills.remove(skill)
+            compiledPassives = null
+            PlayerSync.markSkill(r as? EntityPlayer, skill)
             skillPoints -= deltaPoints
             this.checkAvailableSkills()
             this.checkSelectedSkills()
             // TODO: post change event (confirm)
-            this.sync()
+            this.changed()
             true
         } else false
     }
 
+    /**
+     * Full sync, see [PlayerSync] for regular updates.
+     */
     override fun sync() {
-        if (!batching) {
-            super.sync()
-            val ent = reference.get()
-            if (ent is EntityPlayerMP) refreshHotbarSkills(ent)
-        }
+        super.sync()
+        val ent = reference.get()
+        if (ent is EntityPlayerMP) refreshHotbarSkills(ent)
+    }
+
+    /**
+     * Refreshes the server side hotbar after a change, once per batch.
+     */
+    private fun changed() {
+        val ent = reference.get()
+        if (!batching && ent is EntityPlayerMP) refreshHotbarSkills(ent)
+    }
+
+    internal fun selectedSkillKeys() = selectedSkills.copyOf()
+
+    internal fun classKeys() = _playerClass.copyOf()
+
+    /**
+     * Applies values received through [PlayerSync], bypassing events and checks.
+     */
+    internal fun applySync(update: PlayerSync.Update) {
+        if (PlayerSync.Field.SKILL_POINTS in update) skillPoints = update.skillPoints
+        update.skills.forEach { (skill, rank) -> if (rank != 0) skills[skill] = rank else skills.remove(skill) }
+        compiledPassives = null
+        if (PlayerSync.Field.SELECTED_SKILLS in update) selectedSkills = update.selectedSkills
+        if (PlayerSync.Field.CLASSES in update) _playerClass = update.classes
+        postRead()
     }
 
     val classesSequence = (0 until 3).asSequence().map(this::get)
@@ -217,8 +259,10 @@ class PlayerClassCollection(
     operator fun iterator(): Iterator<MutableMap.MutableEntry<ResourceLocation, Int>> = skills.iterator()
 
     private fun checkSelectedSkills() {
-        for (i in selectedSkills.indices) if (selectedSkills[i] != null && this[selectedSkills[i]!!] <= 0)
+        for (i in selectedSkills.indices) if (selectedSkills[i] != null && this[selectedSkills[i]!!] <= 0) {
             selectedSkills[i] = null
+            PlayerSync.mark(reference.get() as? EntityPlayer, PlayerSync.Field.SELECTED_SKILLS)
+        }
     }
 
     private fun tierPoints(clazz: PlayerClass, tier: Int): Int {
@@ -241,6 +285,7 @@ class PlayerClassCollection(
     }
 
     override fun postRead() {
+        compiledPassives = null
         val ent = reference.get()
         if (ent is EntityPlayer) {
             if (ent.world.isRemote) {
@@ -256,7 +301,7 @@ class PlayerClassCollection(
         batching = true
         block()
         batching = wasBatching
-        sync()
+        changed()
     }
 
     fun reset() = batch {
@@ -265,6 +310,26 @@ class PlayerClassCollection(
         }
     }
 
+    internal object Schema : CapabilitySchema<PlayerClassCollection>(1) {
+        override fun write(instance: PlayerClassCollection, nbt: NBTTagCompound) {
+            nbt.setTag("skills", NBTTagCompound().also { skills ->
+                instance.skills.forEach { (skill, rank) -> skills.setInteger(skill.toString(), rank) }
+            })
+            nbt.setKeys("player_class", instance._playerClass)
+            nbt.setKeys("selectedSkills", instance.selectedSkills)
+            nbt.setInteger("skillPoints", instance.skillPoints)
+        }
+
+        override fun read(instance: PlayerClassCollection, nbt: NBTTagCompound, version: Int) {
+            val skills = nbt.getCompoundTag("skills")
+            instance.skills.clear()
+            skills.keySet.forEach { instance.skills[ResourceLocation(it)] = skills.getInteger(it) }
+            instance._playerClass = nbt.getKeys("player_class", 3)
+            instance.selectedSkills = nbt.getKeys("selectedSkills", 5)
+            instance.skillPoints = nbt.getInteger("skillPoints")
+        }
+    }
+
     companion object {
         @Key
         val KEY = ResourceLocation(BlueRPG.MODID, "player_class")
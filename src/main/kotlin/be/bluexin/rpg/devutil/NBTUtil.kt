@@ -22,6 +22,9 @@ package be.bluexin.rpg.devutil
 import com.teamwizardry.librarianlib.features.saving.AbstractSaveHandler
 import net.minecraft.item.ItemStack
 import net.minecraft.nbt.NBTTagCompound
+import net.minecraft.nbt.NBTTagList
+import net.minecraft.nbt.NBTTagString
+import net.minecraft.util.ResourceLocation
 import kotlin.reflect.KProperty
 
 val ItemStack.tagCompoundOrNew: NBTTagCompound
@@ -103,3 +106,39 @@ object doubleValue {
     operator fun setValue(thisRef: ItemStack, property: KProperty<*>, value: Double) =
         this.setValue(thisRef.tagCompoundOrNew, property, value)
 }
+
+fun NBTTagCompound.setEnum(key: String, value: Enum<*>?) {
+    if (value != null) this.setString(key, value.name)
+}
+
+/**
+ * Enum constant saved under [key] by [setEnum], null when missing or unknown.
+ */
+inline fun <reified T : Enum<T>> NBTTagCompound.getEnum(key: String): T? {
+    if (!this.hasKey(key, 8)) return null
+    val name = this.getString(key)
+    return enumValues<T>().firstOrNull { it.name == name }
+}
+
+fun NBTTagCompound.setStringOrNull(key: String, value: String?) {
+    if (value != null) this.setString(key, value)
+}
+
+fun NBTTagCompound.getStringOrNull(key: String): String? = if (this.hasKey(key, 8)) this.getString(key) else null
+
+fun NBTTagCompound.setKeys(key: String, keys: Array<ResourceLocation?>) {
+    this.setTag(key, NBTTagList().also { list ->
+        keys.forEach { list.appendTag(NBTTagString(it?.toString() ?: "")) }
+    })
+}
+
+/**
+ * Keys saved under [key] by [setKeys], in an array of at least [size] entries.
+ */
+fun NBTTagCompound.getKeys(key: String, size: Int): Array<ResourceLocation?> {
+    val list = this.getTagList(key, 8)
+    return Array(maxOf(size, list.tagCount())) {
+        val s = list.getStringTagAt(it)
+        if (s.isEmpty()) null else ResourceLocation(s)
+    }
+}
@@ -17,17 +17,26 @@
 
 package be.bluexin.rpg.devutil
 
+import be.bluexin.rpg.BlueRPG
+import be.bluexin.rpg.stats.Stat
+import be.bluexin.rpg.stats.StatsCollection
 import be.bluexin.saomclib.capabilities.AbstractCapability
 import com.teamwizardry.librarianlib.features.autoregister.SerializerRegister
 import com.teamwizardry.librarianlib.features.saving.AbstractSaveHandler
 import com.teamwizardry.librarianlib.features.saving.FieldType
+import com.teamwizardry.librarianlib.features.saving.Save
+import com.teamwizardry.librarianlib.features.saving.SaveInPlace
 import com.teamwizardry.librarianlib.features.saving.serializers.Serializer
 import io.netty.buffer.ByteBuf
+import io.netty.buffer.Unpooled
 import net.minecraft.nbt.NBTBase
 import net.minecraft.nbt.NBTTagByte
+import net.minecraft.nbt.NBTTagByteArray
 import net.minecraft.nbt.NBTTagCompound
+import net.minecraft.network.PacketBuffer
 import net.minecraft.util.EnumFacing
 import net.minecraftforge.common.capabilities.Capability
+import java.lang.ref.WeakReference
 
 @SerializerRegister(Unit::class)
 object SerializeUnit : Serializer<Unit>(FieldType.create(Boolean::class.javaPrimitiveType!!)) {
@@ -38,20 +47,107 @@ object SerializeUnit : Serializer<Unit>(FieldType.create(Boolean::class.javaPrim
     override fun writeNBT(value: Unit, syncing: Boolean): NBTBase = NBTTagByte(0)
 }
 
-class AutoCapabilityStorage<T : AbstractCapability> : Capability.IStorage<T> {
+/**
+ * Compact encoding of [StatsCollection]s : varint (id, value) pairs, see [StatsCollection.write].
+ * NBT wraps them in a byte array prefixed by a format version.
+ * Collections saved by older versions (through liblib's reflective map serialization) are still read.
+ */
+@SerializerRegister(StatsCollection::class)
+object SerializeStatsCollection : Serializer<StatsCollection>(FieldType.create(StatsCollection::class.java)) {
+    private const val VERSION = 1
+
+    override fun getDefault() = StatsCollection(WeakReference<Any>(null))
+
+    override fun readBytes(buf: ByteBuf, existing: StatsCollection?, syncing: Boolean) =
+        (existing ?: getDefault()).also { it.read(PacketBuffer(buf)) }
+
+    override fun writeBytes(buf: ByteBuf, value: StatsCollection, syncing: Boolean) = value.write(PacketBuffer(buf))
+
+    override fun readNBT(nbt: NBTBase, existing: StatsCollection?, syncing: Boolean): StatsCollection {
+        val stats = existing ?: getDefault()
+        when (nbt) {
+            is NBTTagByteArray -> {
+                val buf = PacketBuffer(Unpooled.wrappedBuffer(nbt.byteArray))
+                val version = buf.readVarInt()
+                if (version == VERSION) stats.read(buf)
+                else {
+                    BlueRPG.LOGGER.warn("Unknown stats format version $version, discarding.")
+                    stats.clear()
+                }
+            }
+            is NBTTagCompound -> readLegacy(nbt, stats)
+            else -> stats.clear()
+        }
+        return stats
+    }
+
+    override fun writeNBT(value: StatsCollection, syncing: Boolean): NBTBase {
+        val buf = PacketBuffer(Unpooled.buffer(2 + value.size * 4))
+        buf.writeVarInt(VERSION)
+        value.write(buf)
+        val bytes = ByteArray(buf.readableBytes())
+        buf.readBytes(bytes)
+        return NBTTagByteArray(bytes)
+    }
+
+    @SaveInPlace
+    private class Legacy {
+        @Save
+        var collection: MutableMap<Stat, Int> = HashMap()
+    }
+
+    private fun readLegacy(nbt: NBTTagCompound, into: StatsCollection) {
+        into.clear()
+        val legacy = Legacy()
+        AbstractSaveHandler.readAutoNBT(legacy, nbt, false)
+        legacy.collection.forEach { (stat, value) -> into.put(stat, value) }
+    }
+}
+
+/**
+ * Hand-written NBT layout of [T], stamped with a schema [version].
+ * Tags without a stamp were written by older versions through liblib's reflective serialization,
+ * they are still read that way and get rewritten in the current layout on the next save.
+ */
+abstract class CapabilitySchema<T : Any>(val version: Int) {
+
+    protected abstract fun write(instance: T, nbt: NBTTagCompound)
+
+    /**
+     * Reads [nbt], written with schema [version] (at most the current one) into [instance].
+     */
+    protected abstract fun read(instance: T, nbt: NBTTagCompound, version: Int)
+
+    fun write(instance: T) = NBTTagCompound().also {
+        it.setInteger(SCHEMA, version)
+        write(instance, it)
+    }
+
+    fun read(instance: T, nbt: NBTBase?) {
+        val tag = nbt as? NBTTagCompound ?: return
+        if (!tag.hasKey(SCHEMA, 99)) AbstractSaveHandler.readAutoNBT(instance, tag, false)
+        else {
+            val v = tag.getInteger(SCHEMA)
+            if (v <= version) read(instance, tag, v)
+            else BlueRPG.LOGGER.warn("Unknown ${instance.javaClass.simpleName} schema version $v, discarding.")
+        }
+        if (instance is HasReadCallback) instance.postRead()
+    }
+
+    private companion object {
+        private const val SCHEMA = "schema"
+    }
+}
+
+class SchemaCapabilityStorage<T : AbstractCapability>(private val schema: CapabilitySchema<T>) : Capability.IStorage<T> {
     override fun readNBT(
         capability: Capability<T>,
         instance: T,
         side: EnumFacing?,
         nbt: NBTBase
-    ) {
-        val nbtTagCompound = nbt as? NBTTagCompound ?: return
-        AbstractSaveHandler.readAutoNBT(instance, nbtTagCompound, false)
-        if (instance is HasReadCallback) instance.postRead()
-    }
+    ) = schema.read(instance, nbt)
 
-    override fun writeNBT(capability: Capability<T>, instance: T, side: EnumFacing?) =
-        AbstractSaveHandler.writeAutoNBT(instance, false)
+    override fun writeNBT(capability: Capability<T>, instance: T, side: EnumFacing?) = schema.write(instance)
 }
 
 interface HasReadCallback {
@@ -0,0 +1,75 @@
+/*
+ * Copyright (C) 2019.  Arnaud 'Bluexin' Solé
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package be.bluexin.rpg.devutil
+
+import com.google.common.cache.CacheBuilder
+import com.teamwizardry.librarianlib.features.saving.AbstractSaveHandler
+import net.minecraft.item.ItemStack
+import net.minecraft.nbt.NBTTagCompound
+
+/**
+ * Decoded auto-saved data stored under `[key].auto` in the tag of item stacks, cached per stack.
+ * Reads only decode the NBT when the stack has never been read or its data changed,
+ * which is detected by the identity of the `auto` compound and a version stamp bumped by [write].
+ *
+ * The values handed out are shared with the cache and must not be modified : copy them, then [write] the copy.
+ */
+class StackDataCache<T : Any>(private val key: String, private val factory: () -> T) {
+
+    private class Entry<T>(val auto: NBTTagCompound?, val version: Int, val data: T)
+
+    // Weak keys are compared by identity
+    private val cache = CacheBuilder.newBuilder().weakKeys().build<ItemStack, Entry<T>>()
+
+    operator fun get(stack: ItemStack): T {
+        val container = container(stack)
+        val auto = if (container?.hasKey("auto", 10) == true) container.getCompoundTag("auto") else null
+        val version = container?.getInteger(VERSION) ?: 0
+        val cached = cache.getIfPresent(stack)
+        if (cached != null && cached.auto === auto && cached.version == version) return cached.data
+        val data = factory()
+        if (auto != null) AbstractSaveHandler.readAutoNBT(data, auto, false)
+        cache.put(stack, Entry(auto, version, data))
+        return data
+    }
+
+    /**
+     * Writes [data] to [stack], bumping its version stamp.
+     */
+    fun write(stack: ItemStack, data: T) {
+        val tag = stack.tagCompound
+        val newTag = NBTTagCompound().apply {
+            setTag(key, NBTTagCompound().apply {
+                setTag("auto", AbstractSaveHandler.writeAutoNBT(data, false))
+                setInteger(VERSION, (container(stack)?.getInteger(VERSION) ?: 0) + 1)
+            })
+        }
+        tag?.merge(newTag)
+        stack.tagCompound = tag ?: newTag
+        cache.invalidate(stack)
+    }
+
+    private fun container(stack: ItemStack): NBTTagCompound? {
+        val tag = stack.tagCompound
+        return if (tag?.hasKey(key, 10) == true) tag.getCompoundTag(key) else null
+    }
+
+    private companion object {
+        private const val VERSION = "version"
+    }
+}
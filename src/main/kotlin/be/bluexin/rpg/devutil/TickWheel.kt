@@ -0,0 +1,194 @@
+/*
+ * Copyright (C) 2019.  Arnaud 'Bluexin' Solé
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package be.bluexin.rpg.devutil
+
+import be.bluexin.rpg.BlueRPG
+import net.minecraftforge.fml.common.Mod
+import net.minecraftforge.fml.common.eventhandler.SubscribeEvent
+import net.minecraftforge.fml.common.gameevent.TickEvent
+import java.util.*
+
+/**
+ * Server-wide scheduler for periodic work, as a hierarchical timing wheel.
+ * Each tick only looks at the tasks due on that tick, tasks further away get cascaded down as time gets closer.
+ * Tasks without an explicit phase are spread evenly over their period.
+ *
+ * Runs at the end of each server tick. Server thread only.
+ */
+@Mod.EventBusSubscriber(modid = BlueRPG.MODID)
+object TickWheel {
+
+    /**
+     * A registered periodic task. It keeps running until [cancel] is called.
+     */
+    class Task internal constructor(
+        val period: Int,
+        internal val timings: Timings,
+        private val action: () -> Unit
+    ) {
+        internal var due = 0L
+
+        var cancelled = false
+            private set
+
+        fun cancel() {
+            cancelled = true
+        }
+
+        internal fun run() {
+            val start = System.nanoTime()
+            try {
+                action()
+            } catch (e: Exception) {
+                BlueRPG.LOGGER.error("Exception while running periodic task ${timings.name}", e)
+            }
+            timings.record(System.nanoTime() - start)
+        }
+    }
+
+    /**
+     * Cumulated cost of all the tasks registered under a given name.
+     */
+    class Timings internal constructor(val name: String) {
+        var runs = 0L
+            private set
+        var totalNanos = 0L
+            private set
+        var maxNanos = 0L
+            private set
+
+        val averageNanos get() = if (runs == 0L) 0L else totalNanos / runs
+
+        internal fun record(nanos: Long) {
+            ++runs
+            totalNanos += nanos
+            if (nanos > maxNanos) maxNanos = nanos
+        }
+    }
+
+    private const val BITS = 6
+    private const val SLOTS = 1 shl BITS
+    private const val MASK = SLOTS - 1L
+    private const val LEVELS = 3
+
+    private val wheels = Array(LEVELS) { Array(SLOTS) { ArrayList<Task>() } }
+
+    /**
+     * Tasks due further than the last level can hold.
+     */
+    private val overflow = ArrayList<Task>()
+
+    private var spare = ArrayList<Task>()
+
+    private var now = 0L
+
+    private val timings = LinkedHashMap<String, Timings>()
+
+    /**
+     * Next phase handed out for each period, to spread tasks without an explicit phase.
+     */
+    private val nextPhase = HashMap<Int, Int>()
+
+    /**
+     * Registers [action] to run every [period] ticks, on ticks where `tick % period == phase`.
+     * Timings are grouped by [name].
+     */
+    fun every(name: String, period: Int, phase: Int = autoPhase(period), action: () -> Unit): Task {
+        require(period > 0) { "Period must be positive, got $period" }
+        val task = Task(period, timings.getOrPut(name) { Timings(name) }, action)
+        val next = now + 1
+        task.due = next + Math.floorMod(phase - next, period.toLong())
+        insert(task)
+        return task
+    }
+
+    /**
+     * Timings of every task name registered so far.
+     */
+    fun timings(): Collection<Timings> = timings.values
+
+    private fun autoPhase(period: Int): Int {
+        val phase = nextPhase.getOrDefault(period, 0)
+        nextPhase[period] = (phase + 1) % period
+        return phase
+    }
+
+    @SubscribeEvent
+    @JvmStatic
+    fun serverTick(event: TickEvent.ServerTickEvent) {
+        if (event.phase == TickEvent.Phase.END) tick()
+    }
+
+    private fun tick() {
+        ++now
+        if (now and (1L shl BITS * LEVELS) - 1 == 0L) cascade(overflow)
+        for (level in LEVELS - 1 downTo 1) {
+            if (now and (1L shl BITS * level) - 1 == 0L) cascade(wheels[level], (now ushr BITS * level and MASK).toInt())
+        }
+        val index = (now and MASK).toInt()
+        val due = wheels[0][index]
+        wheels[0][index] = spare
+        for (i in due.indices) {
+            val task = due[i]
+            if (task.cancelled) continue
+            task.run()
+            if (!task.cancelled) {
+                task.due += task.period
+                insert(task)
+            }
+        }
+        due.clear()
+        spare = due
+    }
+
+    private fun cascade(level: Array<ArrayList<Task>>, index: Int) {
+        val tasks = level[index]
+        level[index] = spare
+        cascade(tasks)
+        spare = tasks
+    }
+
+    private fun cascade(tasks: ArrayList<Task>) {
+        val moved = ArrayList(tasks)
+        tasks.clear()
+        for (task in moved) if (!task.cancelled) insert(task)
+    }
+
+    /**
+     * Puts [task] in the lowest level whose current span holds its due tick.
+     */
+    private fun insert(task: Task) {
+        for (level in 0 until LEVELS) {
+            if (task.due ushr BITS * (level + 1) == now ushr BITS * (level + 1)) {
+                wheels[level][(task.due ushr BITS * level and MASK).toInt()] += task
+                return
+            }
+        }
+        overflow += task
+    }
+
+    /**
+     * Drops all tasks. Called when the server stops.
+     */
+    internal fun clear() {
+        wheels.forEach { level -> level.forEach { it.clear() } }
+        overflow.clear()
+        nextPhase.clear()
+        now = 0L
+    }
+}
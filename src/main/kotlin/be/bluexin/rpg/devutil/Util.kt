@@ -44,6 +44,7 @@ import net.minecraft.util.math.Vec3d
 import net.minecraft.world.World
 import net.minecraftforge.common.MinecraftForge
 import net.minecraftforge.fml.common.eventhandler.Event
+import kotlin.math.min
 import kotlin.properties.ReadOnlyProperty
 import kotlin.random.Random
 import kotlin.reflect.KClass
@@ -65,6 +66,20 @@ data class Roll(val min: Int, val max: Int) {
 fun <T> Array<T>.random(): T = this[RNG.nextInt(this.size)]
 fun <T> List<T>.random(): T = this[RNG.nextInt(this.size)]
 
+/**
+ * Partial Fisher–Yates shuffle : moves [count] distinct random elements to the start of this array, and returns [count].
+ */
+fun <T> Array<T>.sampleInPlace(count: Int, random: Random = RNG): Int {
+    val n = min(count, size)
+    for (i in 0 until n) {
+        val j = i + random.nextInt(size - i)
+        val t = this[i]
+        this[i] = this[j]
+        this[j] = t
+    }
+    return n
+}
+
 operator fun <K, V> Multimap<K, V>.set(key: K, value: V) {
     this.put(key, value)
 }
@@ -21,6 +21,7 @@ import be.bluexin.rpg.BlueRPG
 import be.bluexin.rpg.devutil.Localizable
 import be.bluexin.rpg.devutil.RNG
 import be.bluexin.rpg.devutil.RpgProjectile
+import be.bluexin.rpg.devutil.sampleInPlace
 import be.bluexin.rpg.gear.Rarity.*
 import be.bluexin.rpg.stats.PrimaryStat
 import be.bluexin.rpg.stats.SecondaryStat
@@ -40,7 +41,7 @@ import java.util.*
 
 enum class Rarity(
     private val color: TextFormatting,
-    private val primaryRolls: Int,
+    val primaryRolls: Int,
     val colorRGB: Int
 ) : Localizable {
     COMMON(WHITE, 1, 0xFFFFFF),
@@ -60,16 +61,12 @@ enum class Rarity(
     }
 
     fun rollStats(): Array<Stat> {
-        val primaries = LinkedList(PrimaryStat.values().toList())
-        val secondaries = LinkedList(SecondaryStat.values().toList())
-        val p = Array<Stat>(primaryRolls) {
-            primaries.removeAt(RNG.nextInt(primaries.size))
-        }
-        val s = Array<Stat>(secondaryRolls) {
-            secondaries.removeAt(RNG.nextInt(secondaries.size))
-        }
+        val primaries = PrimaryStat.values()
+        val secondaries = SecondaryStat.values()
+        val p = primaries.sampleInPlace(primaryRolls)
+        val s = secondaries.sampleInPlace(secondaryRolls)
 
-        return p + s
+        return Array(p + s) { if (it < p) primaries[it] else secondaries[it - p] }
     }
 }
 
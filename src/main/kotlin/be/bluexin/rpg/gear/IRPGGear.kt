@@ -19,10 +19,9 @@ package be.bluexin.rpg.gear
 
 import be.bluexin.rpg.devutil.IUsable
 import be.bluexin.rpg.devutil.ItemCapabilityWrapper
-import be.bluexin.rpg.devutil.set
 import be.bluexin.rpg.stats.*
 import be.bluexin.saomclib.onServer
-import com.google.common.collect.HashMultimap
+import com.google.common.collect.ImmutableMultimap
 import com.google.common.collect.Multimap
 import com.teamwizardry.librarianlib.features.kotlin.Client
 import com.teamwizardry.librarianlib.features.kotlin.localize
@@ -93,22 +92,35 @@ interface IRPGGear : IUsable<ItemStack> { // TODO: use ISpecialArmor
         }
     }
 
+    /**
+     * The returned multimap is shared and immutable, see [GearStats.attributeModifiers].
+     */
     fun getAttributeModifiers(slot: EntityEquipmentSlot, stack: ItemStack): Multimap<String, AttributeModifier> {
-        val m = HashMultimap.create<String, AttributeModifier>()
-        if (slot != this.gearSlot) return m
-        if (!stack.enabled) return m
-        val stats = stack.stats ?: return m
-        if (!stats.generated) return m
+        if (slot != this.gearSlot) return ImmutableMultimap.of()
+        if (!stack.enabled) return ImmutableMultimap.of()
+        val stats = stack.stats ?: return ImmutableMultimap.of()
+        if (!stats.generated) return ImmutableMultimap.of()
+        return stats.attributeModifiers(this)
+    }
+
+    /**
+     * Builds the attribute modifiers of generated, enabled gear in its slot.
+     */
+    fun buildAttributeModifiers(stats: GearStats): ImmutableMultimap<String, AttributeModifier> =
+        attributeModifiersBuilder(stats).build()
 
+    fun attributeModifiersBuilder(stats: GearStats): ImmutableMultimap.Builder<String, AttributeModifier> {
+        val m = ImmutableMultimap.builder<String, AttributeModifier>()
         stats.stats().forEach { (stat, value) ->
-            m[stat.attribute.name] = AttributeModifier(
-                stat.uuid(this.gearSlot),
-                stat.attribute.name,
-                if (stat.operation != Operation.ADD) stat(value) / 100.0 else stat(value),
-                stat.operation.op
+            m.put(
+                stat.attribute.name, AttributeModifier(
+                    stat.uuid(this.gearSlot),
+                    stat.attribute.name,
+                    if (stat.operation != Operation.ADD) stat(value) / 100.0 else stat(value),
+                    stat.operation.op
+                )
             )
         }
-
         return m
     }
 
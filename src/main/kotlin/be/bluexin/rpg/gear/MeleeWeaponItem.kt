@@ -18,14 +18,14 @@
 package be.bluexin.rpg.gear
 
 import be.bluexin.rpg.DamageHandler
-import be.bluexin.rpg.devutil.set
+import be.bluexin.rpg.combatState
 import be.bluexin.rpg.stats.FixedStat
 import be.bluexin.rpg.stats.GearStats
 import be.bluexin.rpg.stats.stats
 import be.bluexin.saomclib.onServer
+import com.google.common.collect.ImmutableMultimap
 import com.google.common.collect.Multimap
 import com.teamwizardry.librarianlib.features.base.item.ItemModSword
-import com.teamwizardry.librarianlib.features.helpers.getBoolean
 import com.teamwizardry.librarianlib.features.kotlin.localize
 import net.minecraft.client.util.ITooltipFlag
 import net.minecraft.entity.Entity
@@ -52,19 +52,29 @@ class MeleeWeaponItem private constructor(override val type: MeleeWeaponType) :
         operator fun get(type: MeleeWeaponType) = pieces[type.ordinal]
     }
 
+    /**
+     * Modifiers of the weapon type, applied whenever the weapon is generated.
+     */
+    private val typeModifiers by lazy {
+        val m = ImmutableMultimap.builder<String, AttributeModifier>()
+        for ((stat, value) in type.attributes) {
+            m.put(stat.attribute.name, AttributeModifier(stat.uuid[0], stat.attribute.name, value, stat.operation.op))
+        }
+        m.build()
+    }
+
     override fun getAttributeModifiers(
         slot: EntityEquipmentSlot,
         stack: ItemStack
     ): Multimap<String, AttributeModifier> {
-        val m = super<IRPGGear>.getAttributeModifiers(slot, stack)
-
-        if (stack.stats?.generated == true) for ((stat, value) in type.attributes) {
-            m[stat.attribute.name] = AttributeModifier(stat.uuid[0], stat.attribute.name, value, stat.operation.op)
-        }
-
-        return m
+        val stats = stack.stats
+        if (stats?.generated != true) return ImmutableMultimap.of()
+        return if (slot == this.gearSlot && stack.enabled) stats.attributeModifiers(this) else typeModifiers
     }
 
+    override fun buildAttributeModifiers(stats: GearStats): ImmutableMultimap<String, AttributeModifier> =
+        attributeModifiersBuilder(stats).putAll(typeModifiers).build()
+
     override fun initCapabilities(stack: ItemStack, nbt: NBTTagCompound?) =
         super<IRPGGear>.initCapabilities(stack, nbt)
 
@@ -114,12 +124,11 @@ class MeleeWeaponItem private constructor(override val type: MeleeWeaponType) :
             val stats = stack.stats!!
             if (stats.generated) {
                 if (stats.bound == null && stats.binding == Binding.BOE) stats.bindTo(player)
-                val t = player.entityData
-                if (t.getBoolean("bluerpg:customAttackProcessing", false)) {
-                    val lastTime = t.getLong("bluerpg:weapontime")
-                    if (lastTime != player.world.totalWorldTime) {
-                        t.setLong("bluerpg:weapontime", player.world.totalWorldTime)
-                        t.setFloat("bluerpg:lastweaponcd", player.getCooledAttackStrength(0f))
+                val combat = player.combatState
+                if (combat.customAttackProcessing) {
+                    if (combat.weaponTime != player.world.totalWorldTime) {
+                        combat.weaponTime = player.world.totalWorldTime
+                        combat.lastWeaponCooldown = player.getCooledAttackStrength(0f)
                     }
                     return super.onLeftClickEntity(stack, player, entity)
                 } else DamageHandler.handleCustomAttack(player)
@@ -248,9 +248,10 @@ class RPGInventory(playerIn: EntityPlayer) : InventoryPlayer(playerIn) {
         }.let { if (it >= 0) it + this.realMainIndices.first else it }
     }
 
-    override fun decrementAnimations() {
-        super.decrementAnimations()
-
+    /**
+     * Updates the egg in the pet slot. Called once a second on the server, through the [be.bluexin.rpg.devutil.TickWheel].
+     */
+    fun updateEggs() {
         eggSlot.forEach {
             if (it.isNotEmpty) (it.item as? EggItem)?.onUpdateInPetSlot(player, it, player.world, player.petStorage)
         }
@@ -17,12 +17,11 @@
 
 package be.bluexin.rpg.pets
 
+import be.bluexin.rpg.devutil.StackDataCache
 import be.bluexin.rpg.stats.StatCapability
 import be.bluexin.saomclib.onServer
 import com.teamwizardry.librarianlib.features.base.item.ItemMod
 import com.teamwizardry.librarianlib.features.kotlin.localize
-import com.teamwizardry.librarianlib.features.kotlin.tagCompound
-import com.teamwizardry.librarianlib.features.saving.AbstractSaveHandler
 import com.teamwizardry.librarianlib.features.saving.NamedDynamic
 import com.teamwizardry.librarianlib.features.saving.Savable
 import com.teamwizardry.librarianlib.features.saving.Save
@@ -111,6 +110,9 @@ object EggItem : ItemMod("egg") {
         }
     }
 
+    /**
+     * Ages the egg, or spawns the pet once hatched. Called once a second.
+     */
     fun onUpdateInPetSlot(
         player: EntityPlayer,
         stack: ItemStack,
@@ -118,48 +120,35 @@ object EggItem : ItemMod("egg") {
         petStorage: PetStorage
     ) {
         world onServer {
-            if (world.totalWorldTime % 20 == 0L) {
-                val data = EggData()
-                val tag = stack.tagCompound
-                if (tag != null) AbstractSaveHandler.readAutoNBT(
-                    data,
-                    tag.getCompoundTag("EntityTag").getCompoundTag("auto"),
-                    false
-                )
-                if (data.isHatched) {
-                    if (!player.combatTracker.inCombat) {
-                        val p = petStorage.petEntity
-                        if (p?.isDead != false) {
-                            val blockpos = player.position
-                            val entity = PetEntity(world)
-                            entity.skinPointer = SkinDescriptor().apply { readFromCompound(tag, "skin") }
-                            entity.setPosition(
-                                blockpos.x + .5,
-                                blockpos.y + this.getYOffset(world, blockpos),
-                                blockpos.z + .5
-                            )
-                            entity.setOwner(player)
-                            applyItemEntityDataToEntity(world, player, stack, entity)
-                            world.spawnEntity(entity)
-                            petStorage.petEntity = entity
-                        }
+            val data = eggDataCache[stack].copy()
+            val tag = stack.tagCompound
+            if (data.isHatched) {
+                if (!player.combatTracker.inCombat) {
+                    val p = petStorage.petEntity
+                    if (p?.isDead != false) {
+                        val blockpos = player.position
+                        val entity = PetEntity(world)
+                        entity.skinPointer = SkinDescriptor().apply { readFromCompound(tag, "skin") }
+                        entity.setPosition(
+                            blockpos.x + .5,
+                            blockpos.y + this.getYOffset(world, blockpos),
+                            blockpos.z + .5
+                        )
+                        entity.setOwner(player)
+                        applyItemEntityDataToEntity(world, player, stack, entity)
+                        world.spawnEntity(entity)
+                        petStorage.petEntity = entity
                     }
-                    return
                 }
-                ++data.secondsLived
-                if (data.shouldHatch) {
-                    data.hatch()
-                    player.sendMessage(TextComponentTranslation("rpg.pet.notifhatched", data.name))
-                }
-
-                val newTag = tagCompound {
-                    "EntityTag" to tagCompound {
-                        "auto" to AbstractSaveHandler.writeAutoNBT(data, false)
-                    }
-                }
-                tag?.merge(newTag)
-                stack.tagCompound = tag ?: newTag
+                return
+            }
+            ++data.secondsLived
+            if (data.shouldHatch) {
+                data.hatch()
+                player.sendMessage(TextComponentTranslation("rpg.pet.notifhatched", data.name))
             }
+
+            eggDataCache.write(stack, data)
         }
     }
 }
@@ -181,16 +170,7 @@ data class EggData(
 ) : StatCapability {
     val shouldHatch get() = secondsLived >= hatchTimeSeconds
 
-    fun loadFrom(stack: ItemStack, other: EggData) {
-        val tag = stack.tagCompound
-        val newTag = tagCompound {
-            "EntityTag" to tagCompound {
-                "auto" to AbstractSaveHandler.writeAutoNBT(other, false)
-            }
-        }
-        tag?.merge(newTag)
-        stack.tagCompound = tag ?: newTag
-    }
+    fun loadFrom(stack: ItemStack, other: EggData) = eggDataCache.write(stack, other)
 
     fun hatch() {
         isHatched = true
@@ -199,20 +179,13 @@ data class EggData(
     override fun copy() = this.copy(name = name)
 }
 
+private val eggDataCache = StackDataCache("EntityTag") { EggData() }
+
+/**
+ * Cached, do not modify.
+ */
 val ItemStack.eggData
-    get() = if (item === EggItem) {
-        EggData().also {
-            if (tagCompound != null && tagCompound!!.getCompoundTag("EntityTag").hasKey(
-                    "auto",
-                    10
-                )
-            ) AbstractSaveHandler.readAutoNBT(
-                it,
-                tagCompound!!.getCompoundTag("EntityTag").getCompoundTag("auto"),
-                false
-            )
-        }
-    } else null
+    get() = if (item === EggItem) eggDataCache[this] else null
 
 class RenderEggItem : TileEntityItemStackRenderer() {
     override fun renderByItem(itemStackIn: ItemStack) {
@@ -18,11 +18,13 @@
 package be.bluexin.rpg.pets
 
 import be.bluexin.rpg.BlueRPG
+import be.bluexin.rpg.devutil.CapabilitySchema
 import be.bluexin.saomclib.capabilities.AbstractEntityCapability
 import be.bluexin.saomclib.capabilities.Key
 import com.teamwizardry.librarianlib.features.saving.Save
 import com.teamwizardry.librarianlib.features.saving.SaveInPlace
 import net.minecraft.entity.player.EntityPlayer
+import net.minecraft.nbt.NBTTagCompound
 import net.minecraft.util.ResourceLocation
 import net.minecraftforge.common.MinecraftForge
 import net.minecraftforge.common.capabilities.Capability
@@ -63,6 +65,14 @@ class PetStorage : AbstractEntityCapability() {
         petEntity = null
     }
 
+    internal object Schema : CapabilitySchema<PetStorage>(1) {
+        override fun write(instance: PetStorage, nbt: NBTTagCompound) = nbt.setInteger("petID", instance.petID)
+
+        override fun read(instance: PetStorage, nbt: NBTTagCompound, version: Int) {
+            instance.petID = nbt.getInteger("petID")
+        }
+    }
+
     companion object {
         @Key
         val KEY = ResourceLocation(BlueRPG.MODID, "pet_storage")
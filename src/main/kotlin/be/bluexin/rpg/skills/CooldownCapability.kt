@@ -18,9 +18,9 @@
 package be.bluexin.rpg.skills
 
 import be.bluexin.rpg.BlueRPG
-import be.bluexin.rpg.PacketCooldown
+import be.bluexin.rpg.PacketCooldowns
 import be.bluexin.rpg.PacketSetUseTime
-import be.bluexin.rpg.devutil.get
+import be.bluexin.rpg.devutil.CapabilitySchema
 import be.bluexin.rpg.inventory.RPGInventory
 import be.bluexin.rpg.skills.SkillItem.skill
 import be.bluexin.saomclib.capabilities.AbstractEntityCapability
@@ -30,21 +30,47 @@ import com.teamwizardry.librarianlib.features.network.PacketHandler
 import com.teamwizardry.librarianlib.features.saving.*
 import net.minecraft.entity.player.EntityPlayer
 import net.minecraft.entity.player.EntityPlayerMP
+import net.minecraft.nbt.NBTTagCompound
+import net.minecraft.nbt.NBTTagList
+import net.minecraft.nbt.NBTTagString
 import net.minecraft.util.ResourceLocation
 import net.minecraft.util.math.MathHelper
 import net.minecraftforge.common.capabilities.Capability
 import net.minecraftforge.common.capabilities.CapabilityInject
 
+/**
+ * Skill cooldowns of a player, kept in a min-heap ordered by expiry so [tick] only has to look at the head.
+ * Cooldowns are keyed by int ids (skill registry ids), leaving room for global or shared cooldowns under reserved ids.
+ *
+ * Changes made server side are sent to the client in a single [PacketCooldowns] per tick.
+ * The client expires cooldowns on its own, from their start and duration.
+ */
 @SaveInPlace
 class CooldownCapability : AbstractEntityCapability() {
-    private val cooldowns = mutableMapOf<SkillData, Cooldown>()
+    private val cooldowns = CooldownHeap()
+
+    /**
+     * Keys changed since the last flush.
+     */
+    private var dirty = IntArray(4)
+    private var dirtySize = 0
 
     @Suppress("unused")
     private var _cooldowns: Map<ResourceLocation, Cooldown>
-        @SaveMethodGetter("cooldowns") get() = cooldowns.mapKeys { it.key.key }
+        @SaveMethodGetter("cooldowns") get() {
+            val r = HashMap<ResourceLocation, Cooldown>(cooldowns.size)
+            for (i in 0 until cooldowns.size) {
+                val skill = SkillRegistry.getValue(cooldowns.keys[i]) ?: continue
+                r[skill.key] = Cooldown(cooldowns.starts[i], cooldowns.expiries[i])
+            }
+            return r
+        }
         @SaveMethodSetter("cooldowns") set(value) {
             cooldowns.clear()
-            cooldowns += value.mapKeys { SkillRegistry[it.key]!! }
+            value.forEach { (key, cd) ->
+                val skill = SkillRegistry[key] ?: return@forEach
+                cooldowns.put(SkillRegistry.getId(skill), cd.createTicks, cd.expireTicks)
+            }
         }
 
     @Save
@@ -71,21 +97,18 @@ class CooldownCapability : AbstractEntityCapability() {
     }
 
     operator fun get(skillIn: SkillData, partialTicks: Float = 0f): Float {
-        val cd = this.cooldowns[skillIn] ?: return 0f
+        val i = cooldowns.indexOf(SkillRegistry.getId(skillIn))
+        if (i < 0) return 0f
 
-        val f = cd.expireTicks - cd.createTicks
-        val f1 = cd.expireTicks - this.ticks + partialTicks
+        val f = cooldowns.expiries[i] - cooldowns.starts[i]
+        val f1 = cooldowns.expiries[i] - this.ticks + partialTicks
         return MathHelper.clamp(f1 / f, 0f, 1f)
     }
 
     fun tick() {
         ++this.ticks
-        if (!(player ?: return).world.isRemote && this.cooldowns.isNotEmpty()) this.cooldowns.entries.removeIf {
-            if (it.value.expireTicks <= this.ticks) {
-                notifyOnRemove(it.key)
-                true
-            } else false
-        }
+        cooldowns.expire(this.ticks)
+        if (dirtySize > 0) flush()
     }
 
     fun startUsing(skillSlot: Int) {
@@ -98,28 +121,46 @@ class CooldownCapability : AbstractEntityCapability() {
         castTime
     } else -1
 
-    operator fun set(skillIn: SkillData, ticksIn: Int) {
-        this.cooldowns[skillIn] = Cooldown(this.ticks, this.ticks + ticksIn)
-        this.notifyOnSet(skillIn, ticksIn)
+    operator fun set(skillIn: SkillData, ticksIn: Int) = this.set(SkillRegistry.getId(skillIn), ticksIn, 0)
+
+    operator fun minusAssign(skillIn: SkillData) = this.remove(SkillRegistry.getId(skillIn))
+
+    /**
+     * Starts a cooldown of [duration] ticks under [key], [elapsed] ticks ago.
+     */
+    internal fun set(key: Int, duration: Int, elapsed: Int) {
+        cooldowns.put(key, this.ticks - elapsed, this.ticks - elapsed + duration)
+        markDirty(key)
     }
 
-    operator fun minusAssign(skillIn: SkillData) {
-        this.cooldowns -= skillIn
-        this.notifyOnRemove(skillIn)
+    internal fun remove(key: Int) {
+        cooldowns.remove(key)
+        markDirty(key)
     }
 
-    private fun notifyOnSet(skillIn: SkillData, ticksIn: Int) {
-        val p = player ?: return
-        p.world onServer {
-            PacketHandler.NETWORK.sendTo(PacketCooldown(skillIn, ticksIn), p as EntityPlayerMP)
-        }
+    private fun markDirty(key: Int) {
+        if ((player ?: return).world.isRemote) return
+        for (i in 0 until dirtySize) if (dirty[i] == key) return
+        if (dirtySize == dirty.size) dirty = dirty.copyOf(dirtySize * 2)
+        dirty[dirtySize++] = key
     }
 
-    private fun notifyOnRemove(skillIn: SkillData) {
-        val p = player ?: return
-        p.world onServer {
-            PacketHandler.NETWORK.sendTo(PacketCooldown(skillIn, 0), p as EntityPlayerMP)
+    /**
+     * Sends the current state of every changed key. Keys that expired in the meantime are sent as removed.
+     */
+    private fun flush() {
+        val p = player as? EntityPlayerMP
+        if (p != null) {
+            val packet = PacketCooldowns()
+            for (i in 0 until dirtySize) {
+                val key = dirty[i]
+                val index = cooldowns.indexOf(key)
+                if (index < 0) packet.add(key, 0, 0)
+                else packet.add(key, cooldowns.expiries[index] - cooldowns.starts[index], ticks - cooldowns.starts[index])
+            }
+            PacketHandler.NETWORK.sendTo(packet, p)
         }
+        dirtySize = 0
     }
 
     private fun notifyUsing() {
@@ -131,6 +172,39 @@ class CooldownCapability : AbstractEntityCapability() {
 
     private val player get() = reference.get() as? EntityPlayer
 
+    internal object Schema : CapabilitySchema<CooldownCapability>(1) {
+        override fun write(instance: CooldownCapability, nbt: NBTTagCompound) {
+            val heap = instance.cooldowns
+            val skills = NBTTagList()
+            val starts = IntArray(heap.size)
+            val expiries = IntArray(heap.size)
+            var count = 0
+            for (i in 0 until heap.size) {
+                val skill = SkillRegistry.getValue(heap.keys[i]) ?: continue
+                skills.appendTag(NBTTagString(skill.key.toString()))
+                starts[count] = heap.starts[i]
+                expiries[count++] = heap.expiries[i]
+            }
+            nbt.setTag("skills", skills)
+            nbt.setIntArray("starts", starts.copyOf(count))
+            nbt.setIntArray("expiries", expiries.copyOf(count))
+            nbt.setInteger("ticks", instance.ticks)
+        }
+
+        override fun read(instance: CooldownCapability, nbt: NBTTagCompound, version: Int) {
+            val heap = instance.cooldowns
+            heap.clear()
+            val skills = nbt.getTagList("skills", 8)
+            val starts = nbt.getIntArray("starts")
+            val expiries = nbt.getIntArray("expiries")
+            for (i in 0 until minOf(skills.tagCount(), starts.size, expiries.size)) {
+                val skill = SkillRegistry[ResourceLocation(skills.getStringTagAt(i))] ?: continue
+                heap.put(SkillRegistry.getId(skill), starts[i], expiries[i])
+            }
+            instance.ticks = nbt.getInteger("ticks")
+        }
+    }
+
     companion object {
         @Key
         val KEY = ResourceLocation(BlueRPG.MODID, "cooldowns")
@@ -142,6 +216,108 @@ class CooldownCapability : AbstractEntityCapability() {
 
     @Savable
     data class Cooldown(val createTicks: Int, val expireTicks: Int)
+
+    /**
+     * Binary min-heap of cooldowns by expiry tick, as parallel primitive arrays.
+     * Lookups by key are linear, as a player only ever has a handful of cooldowns running.
+     */
+    private class CooldownHeap {
+        var keys = IntArray(8)
+            private set
+        var starts = IntArray(8)
+            private set
+        var expiries = IntArray(8)
+            private set
+        var size = 0
+            private set
+
+        fun indexOf(key: Int): Int {
+            for (i in 0 until size) if (keys[i] == key) return i
+            return -1
+        }
+
+        fun put(key: Int, start: Int, expiry: Int) {
+            var i = indexOf(key)
+            if (i < 0) {
+                if (size == keys.size) grow()
+                i = size++
+                keys[i] = key
+            }
+            starts[i] = start
+            expiries[i] = expiry
+            siftDown(siftUp(i))
+        }
+
+        fun remove(key: Int) {
+            val i = indexOf(key)
+            if (i >= 0) removeAt(i)
+        }
+
+        /**
+         * Drops every cooldown expired at [now].
+         */
+        fun expire(now: Int) {
+            while (size > 0 && expiries[0] <= now) removeAt(0)
+        }
+
+        fun clear() {
+            size = 0
+        }
+
+        private fun removeAt(i: Int) {
+            --size
+            if (i == size) return
+            move(size, i)
+            siftDown(siftUp(i))
+        }
+
+        private fun siftUp(index: Int): Int {
+            var i = index
+            while (i > 0) {
+                val parent = (i - 1) / 2
+                if (expiries[parent] <= expiries[i]) break
+                swap(i, parent)
+                i = parent
+            }
+            return i
+        }
+
+        private fun siftDown(index: Int) {
+            var i = index
+            while (true) {
+                val l = 2 * i + 1
+                if (l >= size) return
+                val c = if (l + 1 < size && expiries[l + 1] < expiries[l]) l + 1 else l
+                if (expiries[i] <= expiries[c]) return
+                swap(i, c)
+                i = c
+            }
+        }
+
+        private fun move(from: Int, to: Int) {
+            keys[to] = keys[from]
+            starts[to] = starts[from]
+            expiries[to] = expiries[from]
+        }
+
+        private fun swap(a: Int, b: Int) {
+            var t = keys[a]
+            keys[a] = keys[b]
+            keys[b] = t
+            t = starts[a]
+            starts[a] = starts[b]
+            starts[b] = t
+            t = expiries[a]
+            expiries[a] = expiries[b]
+            expiries[b] = t
+        }
+
+        private fun grow() {
+            keys = keys.copyOf(size * 2)
+            starts = starts.copyOf(size * 2)
+            expiries = expiries.copyOf(size * 2)
+        }
+    }
 }
 
 val EntityPlayer.cooldowns get() = this.getCapability(CooldownCapability.Capability, null)!!
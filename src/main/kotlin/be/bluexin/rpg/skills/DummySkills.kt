@@ -188,7 +188,7 @@ object DummySkills {
                                 caster[PrimaryStat.DEXTERITY] * 2f * RNG.nextDouble(.95, 1.05) + RNG.nextInt(3)
                             },
                             Skill(
-                                Chain(args = Chain.Args(delayMillis = 100)),
+                                Chain(args = Chain.Args(delayTicks = 2)),
                                 RequireStatus(Status.AGGRESSIVE),
                                 Damage(OnHitInfo { _, from, to ->
                                     if (from is TargetWithPosition && to is TargetWithPosition) PacketLightning(
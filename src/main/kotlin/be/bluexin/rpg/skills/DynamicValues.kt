@@ -37,6 +37,7 @@ import net.minecraft.util.math.Vec3d
 import java.io.PrintWriter
 import java.io.StringWriter
 import java.lang.reflect.ParameterizedType
+import java.util.concurrent.ConcurrentHashMap
 
 data class ExpressionData(
     val cacheType: CacheType,
@@ -47,7 +48,12 @@ data class Holder<T : Target>(
     @get:JvmName("caster")
     val caster: LivingHolder<*>,
     @get:JvmName("target")
-    val target: T
+    val target: T,
+    /**
+     * Cast this evaluation belongs to, holds the [CacheType.PER_CAST] values.
+     */
+    @get:JvmName("context")
+    val context: SkillContext
 ) {
     companion object {
         @JvmStatic
@@ -62,13 +68,41 @@ data class Holder<T : Target>(
 abstract class Expression<T : Target>(protected val expression: CompiledExpression, val text: String) {
     abstract fun updateCache(holder: Holder<T>)
     abstract val cacheType: CacheType
+
+    protected fun evaluate(holder: Holder<T>): Any? {
+        val args = ARGS.get()
+        args[0] = holder
+        try {
+            return expression.evaluate(args)
+        } finally {
+            args[0] = null
+        }
+    }
+
+    protected fun evaluateDouble(holder: Holder<T>): Double {
+        val args = ARGS.get()
+        args[0] = holder
+        try {
+            return expression.evaluate_double(args)
+        } finally {
+            args[0] = null
+        }
+    }
+
+    private companion object {
+        /**
+         * Dynamic library array handed to JEL, reused to avoid allocating one per evaluation.
+         * Expressions don't evaluate other expressions, so there is no reentrancy to worry about.
+         */
+        private val ARGS = ThreadLocal.withInitial { arrayOfNulls<Any>(1) }
+    }
 }
 
 open class ObjectExpression<T : Target, Result>(expression: CompiledExpression, text: String) :
     Expression<T>(expression, text) {
     override fun updateCache(holder: Holder<T>) = Unit
     @Suppress("UNCHECKED_CAST")
-    open operator fun invoke(holder: Holder<T>): Result = expression.evaluate(arrayOf(holder)) as Result
+    open operator fun invoke(holder: Holder<T>): Result = evaluate(holder) as Result
 
     override val cacheType get() = CacheType.NONE
 }
@@ -79,17 +113,30 @@ class StaticObjectExpression<T : Target, Result : Any>(expression: CompiledExpre
 
     @Suppress("UNCHECKED_CAST")
     override fun updateCache(holder: Holder<T>) {
-        this.cache = expression.evaluate(arrayOf(holder)) as Result
+        this.cache = evaluate(holder) as Result
     }
 
     override fun invoke(holder: Holder<T>): Result = this.cache
     override val cacheType get() = CacheType.STATIC
 }
 
+class PerCastObjectExpression<T : Target, Result>(expression: CompiledExpression, text: String) :
+    ObjectExpression<T, Result>(expression, text) {
+
+    @Suppress("UNCHECKED_CAST")
+    override fun invoke(holder: Holder<T>): Result {
+        val cache = holder.context.perCast
+        return if (cache.containsKey(this)) cache[this] as Result
+        else (evaluate(holder) as Result).also { cache[this] = it }
+    }
+
+    override val cacheType get() = CacheType.PER_CAST
+}
+
 open class DoubleExpression<T : Target>(expression: CompiledExpression, text: String) :
     Expression<T>(expression, text) {
     override fun updateCache(holder: Holder<T>) = Unit
-    open operator fun invoke(holder: Holder<T>): Double = expression.evaluate_double(arrayOf(holder))
+    open operator fun invoke(holder: Holder<T>): Double = evaluateDouble(holder)
     override val cacheType get() = CacheType.NONE
 }
 
@@ -98,13 +145,24 @@ class StaticDoubleExpression<T : Target>(expression: CompiledExpression, text: S
     private var cache: Double = .0
 
     override fun updateCache(holder: Holder<T>) {
-        this.cache = expression.evaluate_double(arrayOf(holder))
+        this.cache = evaluateDouble(holder)
     }
 
     override fun invoke(holder: Holder<T>): Double = this.cache
     override val cacheType get() = CacheType.STATIC
 }
 
+class PerCastDoubleExpression<T : Target>(expression: CompiledExpression, text: String) :
+    DoubleExpression<T>(expression, text) {
+
+    override fun invoke(holder: Holder<T>): Double {
+        val cache = holder.context.perCast
+        return cache[this] as Double? ?: evaluateDouble(holder).also { cache[this] = it }
+    }
+
+    override val cacheType get() = CacheType.PER_CAST
+}
+
 enum class CacheType(
     private val genericProvider: (CompiledExpression, String) -> ObjectExpression<Target, Any>,
     private val doubleProvider: (CompiledExpression, String) -> DoubleExpression<Target>
@@ -115,13 +173,17 @@ enum class CacheType(
      */
     STATIC(::StaticObjectExpression, ::StaticDoubleExpression),
 
+    /**
+     * Values will be cached for the duration of a single cast (all targets of a cast share the value),
+     * in the [SkillContext] of that cast.
+     */
+    PER_CAST(::PerCastObjectExpression, ::PerCastDoubleExpression),
+
     /**
      * Values will not be cached
      */
     NONE(::ObjectExpression, ::DoubleExpression);
 
-    // TODO: per cast cache?
-
     @Suppress("UNCHECKED_CAST")
     fun <T : Target, Result> cacheExpression(expr: CompiledExpression, text: String) =
         genericProvider(expr, text) as ObjectExpression<T, Result>
@@ -133,13 +195,22 @@ enum class CacheType(
 
 object LibHelper {
     fun <T : Target, R> compileObject(v: ExpressionData, clazz: Class<R>) = catch(v) {
-        v.cacheType.cacheExpression<T, R>(Evaluator.compile(v.expression, LIB, clazz), v.expression)
+        v.cacheType.cacheExpression<T, R>(compile(v.expression, clazz), v.expression)
     }
 
     fun <T : Target> compileDouble(v: ExpressionData) = catch(v) {
-        v.cacheType.cacheDoubleExpression<T>(Evaluator.compile(v.expression, LIB, java.lang.Double.TYPE), v.expression)
+        v.cacheType.cacheDoubleExpression<T>(compile(v.expression, java.lang.Double.TYPE), v.expression)
     }
 
+    /**
+     * Compiled expressions, by text and result type.
+     * Compiled expressions are stateless, so skills using the same expression share it.
+     */
+    private val compiled = ConcurrentHashMap<Pair<String, Class<*>>, CompiledExpression>()
+
+    private fun compile(expression: String, clazz: Class<*>) =
+        compiled.computeIfAbsent(expression to clazz) { Evaluator.compile(expression, LIB, clazz) }
+
     private inline fun <T> catch(v: ExpressionData, block: () -> T) = try {
         block()
     } catch (ce: CompilationException) {
@@ -18,29 +18,26 @@
 package be.bluexin.rpg.skills
 
 import be.bluexin.rpg.DamageHandler
-import be.bluexin.rpg.devutil.runMainThread
 import be.bluexin.rpg.stats.Buff
 import com.teamwizardry.librarianlib.features.kotlin.plus
 import com.teamwizardry.librarianlib.features.saving.NamedDynamic
 import com.teamwizardry.librarianlib.features.saving.Savable
-import kotlinx.coroutines.GlobalScope
-import kotlinx.coroutines.channels.Channel
-import kotlinx.coroutines.channels.ReceiveChannel
-import kotlinx.coroutines.launch
 import net.minecraft.util.EntityDamageSource
 import net.minecraft.util.math.Vec3d
 import java.util.*
 import kotlin.math.abs
 import com.fantasticsource.dynamicstealth.server.threat.Threat as DSThreat
 
-// Can't use ReceiveChannel#map in these till jvm has union types
-
 @Savable
 @NamedDynamic("e:e")
 interface Effect {
+    /**
+     * Applies this effect to [targets].
+     * [targets] is only valid for the duration of this call and must not be modified.
+     */
     operator fun invoke(
         context: SkillContext,
-        targets: ReceiveChannel<Pair<Target, Target>>
+        targets: TargetBuffer
     )
 }
 
@@ -52,22 +49,17 @@ data class Damage(
 ) : Effect {
     override fun invoke(
         context: SkillContext,
-        targets: ReceiveChannel<Pair<Target, Target>>
+        targets: TargetBuffer
     ) {
-        GlobalScope.launch {
-            for ((from, target) in targets) {
-                if (target is TargetWithWorld && target is TargetWithHealth) {
-                    target.world.minecraftServer?.runMainThread {
-                        val value = this@Damage.value(context, target).toFloat()
-                        if (value > 0) target.attack(
-                            DamageHandler.RpgDamageSource(EntityDamageSource("skill.test", context.caster)),
-                            value
-                        ) else if (value < 0) target.heal(abs(value))
-                    }
-                }
-
-                clientInfo(context, from, target)
+        val source = DamageHandler.RpgDamageSource(EntityDamageSource("skill.test", context.caster))
+        targets.forEach { from, target ->
+            if (target is TargetWithHealth) {
+                val value = this.value(context, target).toFloat()
+                if (value > 0) target.attack(source, value)
+                else if (value < 0) target.heal(abs(value))
             }
+
+            clientInfo(context, from, target)
         }
     }
 }
@@ -80,15 +72,11 @@ data class ApplyBuff(
 ) : Effect {
     override fun invoke(
         context: SkillContext,
-        targets: ReceiveChannel<Pair<Target, Target>>
+        targets: TargetBuffer
     ) {
-        GlobalScope.launch {
-            for ((from, target) in targets) {
-                if (target is TargetWithWorld && target is TargetWithEffects) target.world.minecraftServer?.runMainThread {
-                    effect(context, target)?.toVanilla?.apply(target::addPotionEffect)
-                }
-                clientInfo(context, from, target)
-            }
+        targets.forEach { from, target ->
+            if (target is TargetWithEffects) effect(context, target)?.toVanilla?.apply(target::addPotionEffect)
+            clientInfo(context, from, target)
         }
     }
 }
@@ -101,15 +89,11 @@ data class Velocity(
 ) : Effect {
     override fun invoke(
         context: SkillContext,
-        targets: ReceiveChannel<Pair<Target, Target>>
+        targets: TargetBuffer
     ) {
-        GlobalScope.launch {
-            for ((from, target) in targets) {
-                if (target is TargetWithWorld && target is TargetWithMovement) target.world.minecraftServer?.runMainThread {
-                    target.movement += additionalVelocity(context, target)
-                }
-                clientInfo(context, from, target)
-            }
+        targets.forEach { from, target ->
+            if (target is TargetWithMovement) target.movement += additionalVelocity(context, target)
+            clientInfo(context, from, target)
         }
     }
 }
@@ -121,23 +105,22 @@ data class Skill(
     val condition: Condition?,
     val effect: Effect,
     val clientInfo: OnHitInfo? = null
-) : Effect {
+) : Effect, TargetSink {
     override fun invoke(
         context: SkillContext,
-        targets: ReceiveChannel<Pair<Target, Target>>
+        targets: TargetBuffer
     ) {
-        GlobalScope.launch {
-            for ((from, target) in targets) {
-                launch {
-                    val c = Channel<Pair<Target, Target>>(capacity = Channel.UNLIMITED)
-                    targeting(context, target, c)
-                    effect(context, c)
-                }
-
-                clientInfo(context, from, target)
-            }
+        targets.forEach { from, target ->
+            targeting(context, target, this)
+
+            clientInfo(context, from, target)
         }
     }
+
+    override fun accept(context: SkillContext, targets: TargetBuffer) {
+        if (condition != null) targets.retain { _, target -> condition(context, target) }
+        if (!targets.isEmpty) effect(context, targets)
+    }
 }
 
 @Savable
@@ -145,16 +128,9 @@ data class Skill(
 data class MultiEffect(val effects: Array<Effect>) : Effect {
     override fun invoke(
         context: SkillContext,
-        targets: ReceiveChannel<Pair<Target, Target>>
+        targets: TargetBuffer
     ) {
-        GlobalScope.launch {
-            val channels = Array<Channel<Pair<Target, Target>>>(effects.size) {
-                Channel(capacity = Channel.UNLIMITED)
-            }
-            effects.forEachIndexed { i, effect -> effect(context, channels[i]) }
-            for (e in targets) channels.forEach { it.send(e) }
-            channels.forEach { it.close() }
-        }
+        for (effect in effects) effect(context, targets)
     }
 
     override fun equals(other: Any?): Boolean {
@@ -173,28 +149,24 @@ data class MultiEffect(val effects: Array<Effect>) : Effect {
 
 data class Threat(val clientInfo: OnHitInfo? = null, val amount: (context: SkillContext, target: Target) -> Double) :
     Effect {
-    override fun invoke(context: SkillContext, targets: ReceiveChannel<Pair<Target, Target>>) {
-        GlobalScope.launch {
-            for ((from, target) in targets) {
-                if (from is LivingHolder<*> && target is LivingHolder<*>) context.caster.world.minecraftServer?.runMainThread {
-                    DSThreat.apply(target.it, from.it, amount(context, target), DSThreat.THREAT_TYPE.GEN_ATTACKED)
-                }
-                clientInfo(context, from, target)
+    override fun invoke(context: SkillContext, targets: TargetBuffer) {
+        targets.forEach { from, target ->
+            if (from is LivingHolder<*> && target is LivingHolder<*>) {
+                DSThreat.apply(target.it, from.it, amount(context, target), DSThreat.THREAT_TYPE.GEN_ATTACKED)
             }
+            clientInfo(context, from, target)
         }
     }
 }
 
 data class Taunt(val clientInfo: OnHitInfo? = null) : Effect {
-    override fun invoke(context: SkillContext, targets: ReceiveChannel<Pair<Target, Target>>) {
-        GlobalScope.launch {
-            for ((from, target) in targets) {
-                if (from is LivingHolder<*> && target is LivingHolder<*>) context.caster.world.minecraftServer?.runMainThread {
-                    DSThreat.apply(target.it, from.it, Double.MAX_VALUE, DSThreat.THREAT_TYPE.GEN_ATTACKED)
-                    DSThreat.apply(target.it, from.it, Double.MAX_VALUE, DSThreat.THREAT_TYPE.GEN_ATTACKED)
-                }
-                clientInfo(context, from, target)
+    override fun invoke(context: SkillContext, targets: TargetBuffer) {
+        targets.forEach { from, target ->
+            if (from is LivingHolder<*> && target is LivingHolder<*>) {
+                DSThreat.apply(target.it, from.it, Double.MAX_VALUE, DSThreat.THREAT_TYPE.GEN_ATTACKED)
+                DSThreat.apply(target.it, from.it, Double.MAX_VALUE, DSThreat.THREAT_TYPE.GEN_ATTACKED)
             }
+            clientInfo(context, from, target)
         }
     }
 }
@@ -203,12 +175,10 @@ data class Free(
     val clientInfo: OnHitInfo? = null,
     val block: (context: SkillContext, from: Target, target: Target) -> Unit
 ) : Effect {
-    override fun invoke(context: SkillContext, targets: ReceiveChannel<Pair<Target, Target>>) {
-        GlobalScope.launch {
-            for ((from, target) in targets) {
-                block(context, from, target)
-                clientInfo(context, from, target)
-            }
+    override fun invoke(context: SkillContext, targets: TargetBuffer) {
+        targets.forEach { from, target ->
+            block(context, from, target)
+            clientInfo(context, from, target)
         }
     }
 }
\ No newline at end of file
@@ -0,0 +1,104 @@
+/*
+ * Copyright (C) 2019.  Arnaud 'Bluexin' Solé
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package be.bluexin.rpg.skills
+
+import be.bluexin.rpg.classes.playerClass
+import net.minecraft.entity.player.EntityPlayer
+import net.minecraft.util.ResourceLocation
+
+/**
+ * Casts the passive skills of players, once every [PERIOD] ticks.
+ *
+ * The passives of a player are compiled once (see [compile]) and cached until their skills change.
+ * Each cast still gets its own [SkillContext], as per-cast values are cached there.
+ * Players are spread over the period by a hash of their UUID rather than all casting on the same tick.
+ * Passives of a player that would run the same targeting share a single query.
+ */
+object PassiveSkills {
+
+    const val PERIOD = 10
+
+    /**
+     * A learned passive skill, with its level.
+     */
+    class Entry internal constructor(val processor: Processor, val level: Int)
+
+    /**
+     * Offset of [player] in the period.
+     */
+    fun phase(player: EntityPlayer) = Math.floorMod(player.persistentID.hashCode(), PERIOD)
+
+    internal fun compile(skills: Map<ResourceLocation, Int>) =
+        skills.mapNotNull { (key, level) ->
+            val skill = SkillRegistry.getValue(key)
+            if (skill?.passive == true) Entry(skill.processor, level) else null
+        }.toTypedArray()
+
+    fun cast(player: EntityPlayer) {
+        val passives = player.playerClass.passives
+        if (passives.isEmpty()) return
+        val groups = ArrayList<Group>(passives.size)
+        for (entry in passives) {
+            val context = SkillContext(player, entry.level)
+            if (!entry.processor.fireCast(context)) continue
+            val key = key(entry.processor, context)
+            val group = groups.find { it.key == key }
+            if (group == null) groups += Group(key, entry.processor, context)
+            else group.add(entry.processor, context)
+        }
+        for (group in groups) SkillScheduler.submit {
+            group.processors[0].targeting(group.contexts[0], player.holder, group)
+        }
+    }
+
+    /**
+     * Passives sharing a key get the same targets.
+     * An [AoE] only depends on its context through its range, other targetings may use anything in it.
+     */
+    private fun key(processor: Processor, context: SkillContext): Any {
+        val targeting = processor.targeting
+        return if (targeting is AoE && targeting.clientInfo == null) AoEKey(targeting.shape, targeting.range(context))
+        else Pair(targeting, context)
+    }
+
+    private data class AoEKey(val shape: AoE.Shape, val range: Double)
+
+    /**
+     * Hands the targets of a shared query to each passive of the group, in a fresh copy as they may filter it.
+     */
+    private class Group(val key: Any, processor: Processor, context: SkillContext) : TargetSink {
+        val processors = arrayListOf(processor)
+        val contexts = arrayListOf(context)
+
+        fun add(processor: Processor, context: SkillContext) {
+            processors += processor
+            contexts += context
+        }
+
+        override fun accept(context: SkillContext, targets: TargetBuffer) {
+            if (processors.size == 1) return processors[0].accept(contexts[0], targets)
+            TargetBuffer.use { copy ->
+                for (i in processors.indices) {
+                    copy.clear()
+                    targets.forEach(copy::add)
+                    processors[i].accept(contexts[i], copy)
+                }
+            }
+        }
+    }
+}
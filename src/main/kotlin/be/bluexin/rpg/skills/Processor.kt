@@ -20,10 +20,9 @@ package be.bluexin.rpg.skills
 import be.bluexin.rpg.events.SkillEvent
 import be.bluexin.saomclib.onServer
 import com.teamwizardry.librarianlib.features.saving.Savable
-import kotlinx.coroutines.channels.Channel
-import kotlinx.coroutines.channels.filter
 import net.minecraft.entity.EntityLivingBase
 import net.minecraftforge.common.MinecraftForge
+import java.util.*
 
 @Savable
 data class Processor(
@@ -31,7 +30,7 @@ data class Processor(
     val targeting: Targeting,
     val condition: Condition?,
     val effect: Effect
-) {
+) : TargetSink {
 
     fun startUsing(context: SkillContext): Boolean =
         if (trigger.startUsing(context)) {
@@ -46,14 +45,38 @@ data class Processor(
         } else false
 
     fun cast(context: SkillContext) {
-        if (MinecraftForge.EVENT_BUS.post(SkillEvent.Cast(context, this))) return
-        val channel = Channel<Pair<Target, Target>>(capacity = Channel.UNLIMITED)
-        targeting(context, context.caster.holder, channel)
-        effect(context, condition?.let { c -> channel.filter { c(context, it.second) } } ?: channel)
+        if (!fireCast(context)) return
+        SkillScheduler.submit { targeting(context, context.caster.holder, this) }
+    }
+
+    /**
+     * Posts the cast event, returns false if it got canceled.
+     */
+    internal fun fireCast(context: SkillContext) = !MinecraftForge.EVENT_BUS.post(SkillEvent.Cast(context, this))
+
+    override fun accept(context: SkillContext, targets: TargetBuffer) {
+        if (condition != null) targets.retain { _, target -> condition(context, target) }
+        if (!targets.isEmpty) effect(context, targets)
     }
 }
 
+/**
+ * A single cast of a skill. Build a new one for each cast, as it holds the values cached for that cast.
+ */
 data class SkillContext(
     val caster: EntityLivingBase,
     val level: Int
-)
\ No newline at end of file
+) {
+    private var perCastValues: IdentityHashMap<Expression<*>, Any?>? = null
+
+    /**
+     * Values of the [CacheType.PER_CAST] expressions evaluated during this cast.
+     */
+    internal val perCast: IdentityHashMap<Expression<*>, Any?>
+        get() = perCastValues ?: IdentityHashMap<Expression<*>, Any?>(4).also { perCastValues = it }
+
+    /**
+     * Arguments to evaluate the expressions of this cast against [target].
+     */
+    fun <T : Target> holder(target: T) = Holder(caster.holder, target, this)
+}
\ No newline at end of file
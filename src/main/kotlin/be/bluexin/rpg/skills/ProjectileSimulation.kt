@@ -0,0 +1,230 @@
+/*
+ * Copyright (C) 2019.  Arnaud 'Bluexin' Solé
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package be.bluexin.rpg.skills
+
+import be.bluexin.rpg.BlueRPG
+import net.minecraft.entity.Entity
+import net.minecraft.entity.EntityLivingBase
+import net.minecraft.util.math.AxisAlignedBB
+import net.minecraft.util.math.Vec3d
+import net.minecraft.world.World
+import net.minecraftforge.event.world.WorldEvent
+import net.minecraftforge.fml.common.Mod
+import net.minecraftforge.fml.common.eventhandler.SubscribeEvent
+import net.minecraftforge.fml.common.gameevent.TickEvent
+import java.util.*
+
+/**
+ * Steps all the [SkillProjectileEntity] of a world in a single pass at the end of each tick.
+ * Position and motion are read from the entities on every step, so changes from elsewhere (knockback, teleports,
+ * [ProjectileHolder]) are kept.
+ * Living entities are found through the world's [SpatialIndex]. Other collidable entities (boats, minecarts, end
+ * crystals...) aren't indexed, so they are looked up in the world around each projectile, like vanilla projectiles do.
+ * Hits are handed to the [SkillScheduler].
+ *
+ * Projectiles are picked up on their first server update, and dropped once dead or not updated anymore (unloaded).
+ * Server thread only, get it through [World.projectileSimulation].
+ */
+class ProjectileSimulation internal constructor(private val world: World) {
+
+    private var projectiles = arrayOfNulls<SkillProjectileEntity>(INITIAL_CAPACITY)
+
+    /**
+     * Ids of the entities each projectile already hit, they can't be hit twice by a pass-through projectile.
+     */
+    private var hits = arrayOfNulls<IntArray>(INITIAL_CAPACITY)
+    private var hitCounts = IntArray(INITIAL_CAPACITY)
+
+    private var size = 0
+
+    internal fun add(projectile: SkillProjectileEntity) {
+        if (size == projectiles.size) grow()
+        val i = size++
+        projectiles[i] = projectile
+        hitCounts[i] = 0
+        projectile.simulated = true
+    }
+
+    private fun step() {
+        val time = world.totalWorldTime
+        var i = 0
+        while (i < size) {
+            val p = projectiles[i]!!
+            if (!p.isDead && p.lastServerTick == time && step(i, p)) ++i
+            else removeAt(i)
+        }
+    }
+
+    /**
+     * @return whether [p] is still alive
+     */
+    private fun step(i: Int, p: SkillProjectileEntity): Boolean {
+        val px = p.posX
+        val py = p.posY
+        val pz = p.posZ
+        var mx = p.motionX
+        var my = p.motionY
+        var mz = p.motionZ
+        val nx = px + mx
+        val ny = py + my
+        val nz = pz + mz
+
+        collide(i, p, px, py, pz, nx, ny, nz)
+        if (p.isDead) return false
+
+        // Rotation follows the motion the projectile moved with
+        p.motionX = mx
+        p.motionY = my
+        p.motionZ = mz
+        p.updateRotation()
+
+        mx *= .99
+        my *= .99
+        mz *= .99
+        if (!p.hasNoGravity()) my -= p.gravityVelocity.toDouble()
+
+        p.motionX = mx
+        p.motionY = my
+        p.motionZ = mz
+        p.setPosition(nx, ny, nz)
+
+        if (p.isInWater || p.getDistanceSq(p.initialX, p.initialY, p.initialZ) > p.range) p.setDead()
+        return !p.isDead
+    }
+
+    private fun collide(
+        i: Int, p: SkillProjectileEntity,
+        px: Double, py: Double, pz: Double,
+        nx: Double, ny: Double, nz: Double
+    ) {
+        val from = Vec3d(px, py, pz)
+        val to = Vec3d(nx, ny, nz)
+        val hw = p.width / 2.0
+        val box = AxisAlignedBB(
+            Math.min(px, nx) - hw - 1.0, Math.min(py, ny) - 1.0, Math.min(pz, nz) - hw - 1.0,
+            Math.max(px, nx) + hw + 1.0, Math.max(py, ny) + p.height + 1.0, Math.max(pz, nz) + hw + 1.0
+        )
+        val thrower = p.thrower
+        var hit = false
+        world.spatialIndex.forEachIntersecting(box) {
+            if (!p.isDead && it !== thrower && !hasHit(i, it.entityId) && it.canBeCollidedWith()) {
+                val r = it.entityBoundingBox.grow(0.30000001192092896).calculateIntercept(from, to)
+                if (r != null) {
+                    r.entityHit = it
+                    markHit(i, it.entityId)
+                    hit = true
+                    p.impact(r)
+                }
+            }
+        }
+        if (!p.isDead) for (e in world.getEntitiesWithinAABB(Entity::class.java, box) { collidable(it) }) {
+            if (p.isDead) break
+            if (e === p || e === thrower || hasHit(i, e.entityId)) continue
+            val r = e.entityBoundingBox.grow(0.30000001192092896).calculateIntercept(from, to)
+            if (r != null) {
+                r.entityHit = e
+                markHit(i, e.entityId)
+                hit = true
+                p.impact(r)
+            }
+        }
+        if (!hit) world.rayTraceBlocks(from, to)?.let(p::impact)
+    }
+
+    private fun hasHit(i: Int, id: Int): Boolean {
+        val ids = hits[i] ?: return false
+        for (j in 0 until hitCounts[i]) if (ids[j] == id) return true
+        return false
+    }
+
+    private fun markHit(i: Int, id: Int) {
+        var ids = hits[i]
+        if (ids == null) {
+            ids = IntArray(4)
+            hits[i] = ids
+        } else if (hitCounts[i] == ids.size) {
+            ids = ids.copyOf(ids.size * 2)
+            hits[i] = ids
+        }
+        ids[hitCounts[i]++] = id
+    }
+
+    /**
+     * Moves the last projectile into slot [i].
+     */
+    private fun removeAt(i: Int) {
+        projectiles[i]!!.simulated = false
+        val last = --size
+        if (i != last) {
+            projectiles[i] = projectiles[last]
+            val ids = hits[i]
+            hits[i] = hits[last]
+            hits[last] = ids
+            hitCounts[i] = hitCounts[last]
+        }
+        projectiles[last] = null
+    }
+
+    private fun grow() {
+        val capacity = size * 2
+        projectiles = projectiles.copyOf(capacity)
+        hits = hits.copyOf(capacity)
+        hitCounts = hitCounts.copyOf(capacity)
+    }
+
+    internal fun clear() {
+        for (i in 0 until size) projectiles[i]!!.simulated = false
+        projectiles.fill(null)
+        size = 0
+    }
+
+    internal companion object {
+        private const val INITIAL_CAPACITY = 16
+
+        /**
+         * Collidable entities the [SpatialIndex] doesn't hold.
+         */
+        private fun collidable(e: Entity?) = e !is EntityLivingBase && e != null && e.canBeCollidedWith()
+    }
+
+    /**
+     * Holds the [ProjectileSimulation] of each loaded world and steps them.
+     */
+    @Mod.EventBusSubscriber(modid = BlueRPG.MODID)
+    object Worlds {
+
+        private val simulations = IdentityHashMap<World, ProjectileSimulation>()
+
+        operator fun get(world: World): ProjectileSimulation =
+            simulations.getOrPut(world) { ProjectileSimulation(world) }
+
+        @SubscribeEvent
+        @JvmStatic
+        fun worldTick(event: TickEvent.WorldTickEvent) {
+            if (event.phase == TickEvent.Phase.END && !event.world.isRemote) simulations[event.world]?.step()
+        }
+
+        @SubscribeEvent
+        @JvmStatic
+        fun worldUnload(event: WorldEvent.Unload) {
+            if (!event.world.isRemote) simulations.remove(event.world)?.clear()
+        }
+    }
+}
+
+val World.projectileSimulation get() = ProjectileSimulation.Worlds[this]
@@ -161,8 +161,15 @@ class ProjectileHolder(projectile: SkillProjectileEntity) : DefaultHolder<SkillP
     }
 }
 
-val EntityLivingBase.holder
-    get() = if (this is EntityPlayer) PlayerHolder(this) else LivingHolder(this)
+/**
+ * Holder for this entity.
+ * Server side, it is kept by the [SpatialIndex] along with the entity, and dropped with it.
+ */
+val EntityLivingBase.holder: LivingHolder<*>
+    get() = if (world.isRemote) newHolder() else world.spatialIndex.holder(this)
+
+internal fun EntityLivingBase.newHolder(): LivingHolder<*> =
+    if (this is EntityPlayer) PlayerHolder(this) else LivingHolder(this)
 
 open class PosHolder(pos: Vec3d) : DefaultHolder<Vec3d>(pos), TargetWithPosition {
     override val pos get() = it
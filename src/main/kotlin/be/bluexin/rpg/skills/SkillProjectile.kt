@@ -27,17 +27,13 @@ import be.bluexin.rpg.skills.glitter.TrailSystem
 import be.bluexin.saomclib.onClient
 import be.bluexin.saomclib.onServer
 import com.teamwizardry.librarianlib.features.base.entity.ThrowableEntityMod
-import com.teamwizardry.librarianlib.features.helpers.vec
 import com.teamwizardry.librarianlib.features.kotlin.createFloatKey
 import com.teamwizardry.librarianlib.features.kotlin.createIntKey
 import com.teamwizardry.librarianlib.features.kotlin.managedValue
 import com.teamwizardry.librarianlib.features.saving.Savable
 import com.teamwizardry.librarianlib.features.saving.Save
 import io.netty.buffer.ByteBuf
-import kotlinx.coroutines.channels.SendChannel
-import kotlinx.coroutines.runBlocking
 import net.minecraft.client.renderer.entity.RenderManager
-import net.minecraft.entity.Entity
 import net.minecraft.entity.EntityLivingBase
 import net.minecraft.util.ResourceLocation
 import net.minecraft.util.math.BlockPos
@@ -48,8 +44,6 @@ import net.minecraftforge.fml.common.registry.IEntityAdditionalSpawnData
 import net.minecraftforge.fml.relauncher.Side
 import net.minecraftforge.fml.relauncher.SideOnly
 import java.lang.StrictMath.pow
-import java.util.*
-import kotlin.collections.HashSet
 
 @Savable
 class SkillProjectileEntity : ThrowableEntityMod, RpgProjectile, IEntityAdditionalSpawnData {
@@ -64,8 +58,6 @@ class SkillProjectileEntity : ThrowableEntityMod, RpgProjectile, IEntityAddition
         private val TRAIL_SYSTEM = SkillProjectileEntity::class.createResourceLocationKey()
     }
 
-    private val alreadyHit = HashSet<Entity>()
-
     @Save
     var initialX = 0.0
     @Save
@@ -87,7 +79,7 @@ class SkillProjectileEntity : ThrowableEntityMod, RpgProjectile, IEntityAddition
     var trailSystemKey by managedValue(TRAIL_SYSTEM)
     val trailSystem by lazy { TrailSystem[trailSystemKey] }
 
-    private var result: SendChannel<Target>? = null
+    private var result: TargetSink? = null
 
     private var filter: Condition? = null
 
@@ -95,7 +87,19 @@ class SkillProjectileEntity : ThrowableEntityMod, RpgProjectile, IEntityAddition
 
     var passtrough: Boolean = false
 
-    private val spawnedParticles = LinkedList<DoubleArray>()
+    private val holder by lazy { ProjectileHolder(this) }
+
+    private val spawnedParticles by lazy { ProjectileCore.newRing() }
+
+    /**
+     * Whether this is currently stepped by the [ProjectileSimulation] of its world. Server side only.
+     */
+    internal var simulated = false
+
+    /**
+     * Last world time this got updated on the server, so the simulation can drop unloaded projectiles.
+     */
+    internal var lastServerTick = -1L
 
     @Suppress("unused")
     constructor(world: World) : super(world)
@@ -105,7 +109,7 @@ class SkillProjectileEntity : ThrowableEntityMod, RpgProjectile, IEntityAddition
         context: SkillContext,
         origin: TargetWithPosition,
         range: Double,
-        result: SendChannel<Target>,
+        result: TargetSink,
         filter: Condition? = null,
         precise: Boolean = false,
         passtrough: Boolean = false,
@@ -122,12 +126,21 @@ class SkillProjectileEntity : ThrowableEntityMod, RpgProjectile, IEntityAddition
         this.setSize(width, height)
     }
 
+    /**
+     * The motion is part of the spawn data, as clients extrapolate skill projectiles without velocity updates.
+     */
     override fun readSpawnData(additionalData: ByteBuf) {
         this.passtrough = additionalData.readBoolean()
+        this.motionX = additionalData.readDouble()
+        this.motionY = additionalData.readDouble()
+        this.motionZ = additionalData.readDouble()
     }
 
     override fun writeSpawnData(buffer: ByteBuf) {
         buffer.writeBoolean(this.passtrough)
+        buffer.writeDouble(this.motionX)
+        buffer.writeDouble(this.motionY)
+        buffer.writeDouble(this.motionZ)
     }
 
     override fun entityInit() { // Warning: this runs before CTOR
@@ -163,11 +176,11 @@ class SkillProjectileEntity : ThrowableEntityMod, RpgProjectile, IEntityAddition
                 val e = result.entityHit
                 if (e is EntityLivingBase) {
                     @Suppress("UNCHECKED_CAST")
-                    val h = (if (precise) WorldPosHolder(world, positionVector) else LivingHolder(e))
+                    val h = (if (precise) WorldPosHolder(world, positionVector) else e.holder)
                     val f = filter
                     val c = context
-                    if (f == null || c == null || f(c, h)) {
-                        runBlocking { r.send(h) }
+                    if (c != null && (f == null || f(c, h))) {
+                        hit(c, r, h)
                         if (!passtrough) setDead()
                     }
                 } else {
@@ -176,8 +189,8 @@ class SkillProjectileEntity : ThrowableEntityMod, RpgProjectile, IEntityAddition
                     val h = WorldPosHolder(world, v)
                     val f = filter
                     val c = context
-                    if (f == null || c == null || f(c, h)) {
-                        runBlocking { r.send(h) }
+                    if (c != null && (f == null || f(c, h))) {
+                        hit(c, r, h)
                         if (!passtrough) setDead()
                     }
                 }
@@ -185,7 +198,19 @@ class SkillProjectileEntity : ThrowableEntityMod, RpgProjectile, IEntityAddition
         }
     }
 
-    override fun getGravityVelocity(): Float {
+    /**
+     * Fires the impact event for [result], and handles it unless cancelled.
+     */
+    internal fun impact(result: RayTraceResult) {
+        if (!net.minecraftforge.event.ForgeEventFactory.onProjectileImpact(this, result)) this.onImpact(result)
+    }
+
+    private fun hit(context: SkillContext, sink: TargetSink, target: Target) {
+        val h = holder
+        SkillScheduler.submit { TargetBuffer.single(context, h, target, sink) }
+    }
+
+    public override fun getGravityVelocity(): Float {
         return 0.001f
     }
 
@@ -194,7 +219,7 @@ class SkillProjectileEntity : ThrowableEntityMod, RpgProjectile, IEntityAddition
         world onClient {
             ProjectileCore.killParticles(this.spawnedParticles)
         }
-        result?.close()
+        result = null
         super.setDead()
     }
 
@@ -231,47 +256,18 @@ class SkillProjectileEntity : ThrowableEntityMod, RpgProjectile, IEntityAddition
         } else ++this.ticksInAir
         //endregion
 
-        world onServer {
-            val pos = this.positionVector
-            val posWithMove = vec(this.posX + this.motionX, this.posY + this.motionY, this.posZ + this.motionZ)
-            val hits = this.world.getEntitiesWithinAABBExcludingEntity(
-                this,
-                this.entityBoundingBox.expand(this.motionX, this.motionY, this.motionZ).grow(1.0)
-            ).asSequence()
-                .filter { it !== this.thrower }
-                .filter { it !in this.alreadyHit }
-                .filter(Entity::canBeCollidedWith)
-                .mapNotNull {
-                    val axisalignedbb = it.entityBoundingBox.grow(0.30000001192092896)
-                    val r = axisalignedbb.calculateIntercept(pos, posWithMove)
-                    r?.entityHit = it
-                    r
-                }.ifEmpty {
-                    sequenceOf(this.world.rayTraceBlocks(pos, posWithMove)).filterNotNull()
-                }
-
-            hits.forEach {
-                if (!net.minecraftforge.event.ForgeEventFactory.onProjectileImpact(this, it)) this.onImpact(it)
-            }
-
-            this.alreadyHit += hits.mapNotNull { it.entityHit }.toList()
+        if (!world.isRemote) {
+            // Movement and collisions are stepped by the world's ProjectileSimulation
+            lastServerTick = world.totalWorldTime
+            if (!simulated) world.projectileSimulation.add(this)
+            return
         }
 
         //region super<EntityThrowable>::onUpdate
         this.posX += this.motionX
         this.posY += this.motionY
         this.posZ += this.motionZ
-        val f = MathHelper.sqrt(this.motionX * this.motionX + this.motionZ * this.motionZ)
-        this.rotationYaw = (MathHelper.atan2(this.motionX, this.motionZ) * (180.0 / Math.PI)).toFloat()
-
-        this.rotationPitch = (MathHelper.atan2(this.motionY, f.toDouble()) * (180.0 / Math.PI)).toFloat()
-        while (this.rotationPitch - this.prevRotationPitch < -180.0f) this.prevRotationPitch -= 360.0f
-        while (this.rotationPitch - this.prevRotationPitch >= 180.0f) this.prevRotationPitch += 360.0f
-        while (this.rotationYaw - this.prevRotationYaw < -180.0f) this.prevRotationYaw -= 360.0f
-        while (this.rotationYaw - this.prevRotationYaw >= 180.0f) this.prevRotationYaw += 360.0f
-
-        this.rotationPitch = this.prevRotationPitch + (this.rotationPitch - this.prevRotationPitch) * 0.2f
-        this.rotationYaw = this.prevRotationYaw + (this.rotationYaw - this.prevRotationYaw) * 0.2f
+        this.updateRotation()
 
         this.motionX *= .99
         this.motionY *= .99
@@ -293,6 +289,23 @@ class SkillProjectileEntity : ThrowableEntityMod, RpgProjectile, IEntityAddition
 
         if (this.inWater || this.getDistanceSq(initialX, initialY, initialZ) > range) this.setDead()
     }
+
+    /**
+     * Turns towards the current motion, like [net.minecraft.entity.projectile.EntityThrowable].
+     */
+    internal fun updateRotation() {
+        val f = MathHelper.sqrt(this.motionX * this.motionX + this.motionZ * this.motionZ)
+        this.rotationYaw = (MathHelper.atan2(this.motionX, this.motionZ) * (180.0 / Math.PI)).toFloat()
+
+        this.rotationPitch = (MathHelper.atan2(this.motionY, f.toDouble()) * (180.0 / Math.PI)).toFloat()
+        while (this.rotationPitch - this.prevRotationPitch < -180.0f) this.prevRotationPitch -= 360.0f
+        while (this.rotationPitch - this.prevRotationPitch >= 180.0f) this.prevRotationPitch += 360.0f
+        while (this.rotationYaw - this.prevRotationYaw < -180.0f) this.prevRotationYaw -= 360.0f
+        while (this.rotationYaw - this.prevRotationYaw >= 180.0f) this.prevRotationYaw += 360.0f
+
+        this.rotationPitch = this.prevRotationPitch + (this.rotationPitch - this.prevRotationPitch) * 0.2f
+        this.rotationYaw = this.prevRotationYaw + (this.rotationYaw - this.prevRotationYaw) * 0.2f
+    }
 }
 
 @SideOnly(Side.CLIENT)
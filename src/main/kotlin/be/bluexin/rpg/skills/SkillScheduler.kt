@@ -0,0 +1,132 @@
+/*
+ * Copyright (C) 2019.  Arnaud 'Bluexin' Solé
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package be.bluexin.rpg.skills
+
+import be.bluexin.rpg.BlueRPG
+import com.teamwizardry.librarianlib.features.config.ConfigIntRange
+import com.teamwizardry.librarianlib.features.config.ConfigProperty
+import net.minecraftforge.fml.common.Mod
+import net.minecraftforge.fml.common.eventhandler.SubscribeEvent
+import net.minecraftforge.fml.common.gameevent.TickEvent
+import java.util.*
+
+/**
+ * Server-owned executor for the skill pipeline.
+ * Everything submitted here runs on the server thread, in one batched pass at the end of each server tick.
+ * Work that doesn't fit in [tickBudget] is carried over to the next tick.
+ * Delayed work is expressed in server ticks, so it follows the actual TPS.
+ */
+@Mod.EventBusSubscriber(modid = BlueRPG.MODID)
+object SkillScheduler {
+
+    @ConfigIntRange(1, Int.MAX_VALUE)
+    @ConfigProperty("skills", "Maximum amount of pending skill tasks. Tasks submitted past this limit are dropped")
+    var maxPending = 4096
+        internal set
+
+    @ConfigIntRange(1, Int.MAX_VALUE)
+    @ConfigProperty("skills", "Maximum amount of skill tasks processed per server tick")
+    var tickBudget = 2048
+        internal set
+
+    private val pending = ArrayDeque<() -> Unit>()
+
+    /**
+     * Delayed tasks, by the tick they are due.
+     */
+    private val delayed = TreeMap<Long, ArrayList<() -> Unit>>()
+
+    private var delayedCount = 0
+
+    private var tick = 0L
+
+    private var droppedWarned = false
+
+    /**
+     * Queues [task] for the next pass.
+     * Must be called from the server thread.
+     *
+     * @return false if the queue is full and the task was dropped
+     */
+    fun submit(task: () -> Unit): Boolean {
+        if (saturated()) return false
+        pending += task
+        return true
+    }
+
+    /**
+     * Queues [task] for the pass [delayTicks] ticks from now.
+     * All tasks due on a given tick run in that tick's pass.
+     * Must be called from the server thread.
+     *
+     * @return false if the queue is full and the task was dropped
+     */
+    fun schedule(delayTicks: Int, task: () -> Unit): Boolean {
+        if (delayTicks <= 0) return submit(task)
+        if (saturated()) return false
+        delayed.getOrPut(tick + delayTicks) { ArrayList() } += task
+        ++delayedCount
+        return true
+    }
+
+    private fun saturated(): Boolean {
+        if (pending.size + delayedCount < maxPending) return false
+        if (!droppedWarned) {
+            BlueRPG.LOGGER.warn("Skill scheduler is saturated ($maxPending pending tasks), dropping skill tasks.")
+            droppedWarned = true
+        }
+        return true
+    }
+
+    @SubscribeEvent
+    @JvmStatic
+    fun serverTick(event: TickEvent.ServerTickEvent) {
+        if (event.phase == TickEvent.Phase.END) process()
+    }
+
+    private fun process() {
+        ++tick
+        while (delayed.isNotEmpty() && delayed.firstKey() <= tick) {
+            val due = delayed.pollFirstEntry().value
+            delayedCount -= due.size
+            pending.addAll(due)
+        }
+        var budget = tickBudget
+        while (budget > 0 && pending.isNotEmpty()) {
+            runSafely(pending.poll())
+            --budget
+        }
+        if (pending.isEmpty() && delayed.isEmpty()) droppedWarned = false
+    }
+
+    /**
+     * Drops all queued work. Called when the server stops.
+     */
+    internal fun clear() {
+        pending.clear()
+        delayed.clear()
+        delayedCount = 0
+        droppedWarned = false
+    }
+
+    private inline fun runSafely(block: () -> Unit) = try {
+        block()
+    } catch (e: Exception) {
+        BlueRPG.LOGGER.error("Exception while processing skill task", e)
+    }
+}
@@ -0,0 +1,289 @@
+/*
+ * Copyright (C) 2019.  Arnaud 'Bluexin' Solé
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package be.bluexin.rpg.skills
+
+import be.bluexin.rpg.BlueRPG
+import com.teamwizardry.librarianlib.features.config.ConfigIntRange
+import com.teamwizardry.librarianlib.features.config.ConfigProperty
+import net.minecraft.entity.EntityLivingBase
+import net.minecraft.util.math.AxisAlignedBB
+import net.minecraft.util.math.BlockPos
+import net.minecraft.util.math.MathHelper
+import net.minecraft.world.World
+import net.minecraftforge.event.entity.EntityJoinWorldEvent
+import net.minecraftforge.event.entity.living.LivingEvent
+import net.minecraftforge.event.world.WorldEvent
+import net.minecraftforge.fml.common.Mod
+import net.minecraftforge.fml.common.eventhandler.SubscribeEvent
+import net.minecraftforge.fml.common.gameevent.TickEvent
+import java.util.*
+import kotlin.math.ceil
+import kotlin.math.max
+
+/**
+ * Uniform grid of the living entities of a world, keyed by the cell of their eyes.
+ * It is kept up to date incrementally : entities are added when they join the world and moved when they tick
+ * (see [SpatialIndexes]), so queries never walk the loaded entity list.
+ * Like [World.getEntitiesWithinAABB], queries return every entity of a loaded chunk, whether it ticked lately or
+ * not. Entities that died, left the world or whose chunk unloaded are ignored, and dropped by the periodic [sweep].
+ *
+ * Distances are measured from the eyes, like [LivingHolder.pos].
+ * Server thread only, get it through [World.spatialIndex].
+ */
+class SpatialIndex internal constructor(private val world: World) {
+
+    private val cellSize = SpatialIndexes.cellSize.toDouble()
+
+    private val cells = HashMap<Long, ArrayList<Entry>>()
+
+    private val entries = IdentityHashMap<EntityLivingBase, Entry>()
+
+    /**
+     * Largest distance between the eyes of an indexed entity and the edge of its bounding box.
+     */
+    private var margin = 0.0
+
+    private val blockProbe = BlockPos.MutableBlockPos()
+
+    private class Entry(val entity: EntityLivingBase, var key: Long) {
+        var holder: LivingHolder<*>? = null
+    }
+
+    /**
+     * Adds [e] to the index, or moves it to its current cell.
+     */
+    fun update(e: EntityLivingBase) {
+        if (e.isDead) return
+        val eyes = e.eyeHeight.toDouble()
+        val key = key(cell(e.posX), cell(e.posY + eyes), cell(e.posZ))
+        val entry = entries[e]
+        if (entry == null) {
+            val new = Entry(e, key)
+            entries[e] = new
+            cells.getOrPut(key) { ArrayList() } += new
+        } else if (entry.key != key) {
+            remove(entry)
+            entry.key = key
+            cells.getOrPut(key) { ArrayList() } += entry
+        }
+        margin = max(margin, max(e.width / 2.0, max(eyes, e.height - eyes)))
+    }
+
+    /**
+     * Holder of [e], kept for as long as [e] is indexed so that targeting doesn't allocate one per hit.
+     */
+    fun holder(e: EntityLivingBase): LivingHolder<*> {
+        val entry = entries[e] ?: return e.newHolder()
+        return entry.holder ?: e.newHolder().also { entry.holder = it }
+    }
+
+    /**
+     * Drops the entities that aren't [live] anymore, and recomputes the margin.
+     */
+    fun sweep() {
+        var m = 0.0
+        val it = entries.values.iterator()
+        while (it.hasNext()) {
+            val entry = it.next()
+            val e = entry.entity
+            if (!live(e)) {
+                remove(entry)
+                it.remove()
+            } else {
+                val eyes = e.eyeHeight.toDouble()
+                m = max(m, max(e.width / 2.0, max(eyes, e.height - eyes)))
+            }
+        }
+        margin = m
+    }
+
+    /**
+     * Calls [action] for every living entity whose eyes are within [radius] of ([x], [y], [z]).
+     */
+    fun forEachWithin(x: Double, y: Double, z: Double, radius: Double, action: (EntityLivingBase) -> Unit) {
+        val r = radius + SLACK
+        val radiusSq = radius * radius
+        forEachCandidate(x - r, y - r, z - r, x + r, y + r, z + r) {
+            if (distanceSq(it, x, y, z) <= radiusSq) action(it)
+        }
+    }
+
+    /**
+     * Calls [action] for every living entity whose bounding box intersects [box].
+     */
+    fun forEachIntersecting(box: AxisAlignedBB, action: (EntityLivingBase) -> Unit) {
+        val r = margin + SLACK
+        forEachCandidate(box.minX - r, box.minY - r, box.minZ - r, box.maxX + r, box.maxY + r, box.maxZ + r) {
+            if (it.entityBoundingBox.intersects(box)) action(it)
+        }
+    }
+
+    /**
+     * Finds the living entity closest to ([x], [y], [z]) within [radius] that matches [predicate].
+     * Cells are searched in rings of growing distance, stopping as soon as no further ring can hold a closer match.
+     */
+    fun nearest(x: Double, y: Double, z: Double, radius: Double, predicate: (EntityLivingBase) -> Boolean): EntityLivingBase? {
+        var best: EntityLivingBase? = null
+        var bestSq = radius * radius
+        val consider = { e: EntityLivingBase ->
+            val d = distanceSq(e, x, y, z)
+            if ((d < bestSq || best == null && d <= bestSq) && predicate(e)) {
+                best = e
+                bestSq = d
+            }
+        }
+        val maxRing = ceil((radius + SLACK) / cellSize).toInt()
+        if (ringVolume(maxRing) > cells.size) {
+            forEachLive(consider)
+            return best
+        }
+        val cx = cell(x)
+        val cy = cell(y)
+        val cz = cell(z)
+        for (ring in 0..maxRing) {
+            forEachInCells(cx - ring, cy - ring, cz - ring, cx + ring, cy + ring, cz + ring, shell = true, action = consider)
+            val further = ring * cellSize - SLACK
+            if (best != null && further > 0 && further * further >= bestSq) break
+        }
+        return best
+    }
+
+    private inline fun forEachCandidate(
+        minX: Double, minY: Double, minZ: Double,
+        maxX: Double, maxY: Double, maxZ: Double,
+        action: (EntityLivingBase) -> Unit
+    ) {
+        val x0 = cell(minX)
+        val y0 = cell(minY)
+        val z0 = cell(minZ)
+        val x1 = cell(maxX)
+        val y1 = cell(maxY)
+        val z1 = cell(maxZ)
+        // Sparse world or huge query, looking at every entity is cheaper than probing empty cells
+        if ((x1 - x0 + 1).toLong() * (y1 - y0 + 1) * (z1 - z0 + 1) > cells.size) forEachLive(action)
+        else forEachInCells(x0, y0, z0, x1, y1, z1, shell = false, action = action)
+    }
+
+    private inline fun forEachLive(action: (EntityLivingBase) -> Unit) {
+        for (entry in entries.values) if (live(entry.entity)) action(entry.entity)
+    }
+
+    /**
+     * Calls [action] for the live entities of the cells from ([x0], [y0], [z0]) to ([x1], [y1], [z1]), inclusive.
+     * With [shell], only the cells on the faces of that box are visited.
+     */
+    private inline fun forEachInCells(
+        x0: Int, y0: Int, z0: Int,
+        x1: Int, y1: Int, z1: Int,
+        shell: Boolean,
+        action: (EntityLivingBase) -> Unit
+    ) {
+        for (cx in x0..x1) for (cy in y0..y1) for (cz in z0..z1) {
+            if (shell && cx != x0 && cx != x1 && cy != y0 && cy != y1 && cz != z0 && cz != z1) continue
+            val cell = cells[key(cx, cy, cz)] ?: continue
+            for (i in cell.indices) {
+                val e = cell[i].entity
+                if (live(e)) action(e)
+            }
+        }
+    }
+
+    /**
+     * Whether [e] is still part of this world : alive, not moved to another one, and in a loaded chunk.
+     */
+    private fun live(e: EntityLivingBase) = !e.isDead && e.world === world &&
+            world.isBlockLoaded(blockProbe.setPos(MathHelper.floor(e.posX), 0, MathHelper.floor(e.posZ)))
+
+    private fun remove(entry: Entry) {
+        val cell = cells[entry.key] ?: return
+        cell.remove(entry)
+        if (cell.isEmpty()) cells.remove(entry.key)
+    }
+
+    private fun cell(c: Double) = MathHelper.floor(c / cellSize)
+
+    private fun ringVolume(ring: Int) = (2L * ring + 1).let { it * it * it }
+
+    private fun distanceSq(e: EntityLivingBase, x: Double, y: Double, z: Double): Double {
+        val dx = e.posX - x
+        val dy = e.posY + e.eyeHeight - y
+        val dz = e.posZ - z
+        return dx * dx + dy * dy + dz * dz
+    }
+
+    private companion object {
+        /**
+         * Entities are indexed when their update starts, they may have moved since.
+         */
+        private const val SLACK = 1.0
+
+        private const val MASK = (1L shl 21) - 1
+
+        private fun key(x: Int, y: Int, z: Int) =
+            (x.toLong() and MASK) or ((y.toLong() and MASK) shl 21) or ((z.toLong() and MASK) shl 42)
+    }
+}
+
+val World.spatialIndex get() = SpatialIndexes[this]
+
+/**
+ * Holds the [SpatialIndex] of each loaded world.
+ */
+@Mod.EventBusSubscriber(modid = BlueRPG.MODID)
+object SpatialIndexes {
+
+    @ConfigIntRange(1, 64)
+    @ConfigProperty("skills", "Cell size of the skill targeting spatial index, in blocks")
+    var cellSize = 4
+        internal set
+
+    // Not weak : indexed entities reference their world
+    private val indexes = IdentityHashMap<World, SpatialIndex>()
+
+    operator fun get(world: World): SpatialIndex = indexes.getOrPut(world) { SpatialIndex(world) }
+
+    @SubscribeEvent
+    @JvmStatic
+    fun entityJoinWorld(event: EntityJoinWorldEvent) {
+        val e = event.entity
+        if (e is EntityLivingBase && !event.world.isRemote) this[event.world].update(e)
+    }
+
+    @SubscribeEvent
+    @JvmStatic
+    fun livingUpdate(event: LivingEvent.LivingUpdateEvent) {
+        val e = event.entityLiving
+        if (!e.world.isRemote) this[e.world].update(e)
+    }
+
+    @SubscribeEvent
+    @JvmStatic
+    fun worldTick(event: TickEvent.WorldTickEvent) {
+        if (event.phase == TickEvent.Phase.END && !event.world.isRemote && event.world.totalWorldTime % SWEEP_PERIOD == 0L) {
+            indexes[event.world]?.sweep()
+        }
+    }
+
+    @SubscribeEvent
+    @JvmStatic
+    fun worldUnload(event: WorldEvent.Unload) {
+        if (!event.world.isRemote) indexes.remove(event.world)
+    }
+
+    private const val SWEEP_PERIOD = 100L
+}
@@ -0,0 +1,125 @@
+/*
+ * Copyright (C) 2019.  Arnaud 'Bluexin' Solé
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package be.bluexin.rpg.skills
+
+import java.util.*
+
+/**
+ * Receives the targets found by a [Targeting].
+ */
+interface TargetSink {
+    /**
+     * Handles a batch of targets.
+     * [targets] is only valid for the duration of this call, and may be filtered in place.
+     */
+    fun accept(context: SkillContext, targets: TargetBuffer)
+}
+
+/**
+ * Reusable batch of (from, target) entries, filled by a [Targeting] and drained by an [Effect].
+ * Buffers are pooled : get them through [use] and don't keep references around.
+ * Server thread only.
+ */
+class TargetBuffer private constructor() {
+    @PublishedApi
+    internal var froms = arrayOfNulls<Target>(INITIAL_CAPACITY)
+    @PublishedApi
+    internal var targets = arrayOfNulls<Target>(INITIAL_CAPACITY)
+
+    var size = 0
+        @PublishedApi internal set
+
+    val isEmpty get() = size == 0
+
+    fun add(from: Target, target: Target) {
+        if (size == targets.size) {
+            froms = froms.copyOf(size * 2)
+            targets = targets.copyOf(size * 2)
+        }
+        froms[size] = from
+        targets[size++] = target
+    }
+
+    fun from(index: Int): Target = froms[index]!!
+
+    fun target(index: Int): Target = targets[index]!!
+
+    inline fun forEach(block: (from: Target, target: Target) -> Unit) {
+        for (i in 0 until size) block(froms[i]!!, targets[i]!!)
+    }
+
+    /**
+     * Keeps only the entries matching [predicate], preserving their order.
+     */
+    inline fun retain(predicate: (from: Target, target: Target) -> Boolean) {
+        var kept = 0
+        for (i in 0 until size) {
+            val from = froms[i]!!
+            val target = targets[i]!!
+            if (predicate(from, target)) {
+                froms[kept] = from
+                targets[kept++] = target
+            }
+        }
+        Arrays.fill(froms, kept, size, null)
+        Arrays.fill(targets, kept, size, null)
+        size = kept
+    }
+
+    fun clear() {
+        Arrays.fill(froms, 0, size, null)
+        Arrays.fill(targets, 0, size, null)
+        size = 0
+    }
+
+    companion object {
+        private const val INITIAL_CAPACITY = 16
+        private const val MAX_POOLED = 16
+
+        private val pool = ArrayDeque<TargetBuffer>()
+
+        @PublishedApi
+        internal fun acquire(): TargetBuffer = pool.pollFirst() ?: TargetBuffer()
+
+        @PublishedApi
+        internal fun release(buffer: TargetBuffer) {
+            buffer.clear()
+            if (pool.size < MAX_POOLED) pool.addFirst(buffer)
+        }
+
+        /**
+         * Runs [block] with a pooled buffer, which is recycled afterwards.
+         */
+        inline fun <T> use(block: (TargetBuffer) -> T): T {
+            val buffer = acquire()
+            try {
+                return block(buffer)
+            } finally {
+                release(buffer)
+            }
+        }
+
+        /**
+         * Sends a single entry to [sink].
+         */
+        fun single(context: SkillContext, from: Target, target: Target, sink: TargetSink) = use {
+            it.add(from, target)
+            sink.accept(context, it)
+        }
+    }
+}
@@ -20,11 +20,11 @@
 package be.bluexin.rpg.skills
 
 import be.bluexin.rpg.devutil.getEntityLookedAt
-import be.bluexin.rpg.devutil.offerOrSendAndClose
 import be.bluexin.rpg.devutil.runMainThread
 import be.bluexin.rpg.gear.WeaponAttribute
 import be.bluexin.rpg.stats.get
-import com.google.common.base.Predicate
+import com.teamwizardry.librarianlib.features.config.ConfigIntRange
+import com.teamwizardry.librarianlib.features.config.ConfigProperty
 import com.teamwizardry.librarianlib.features.helpers.aabb
 import com.teamwizardry.librarianlib.features.kotlin.minus
 import com.teamwizardry.librarianlib.features.kotlin.plus
@@ -32,22 +32,19 @@ import com.teamwizardry.librarianlib.features.kotlin.times
 import com.teamwizardry.librarianlib.features.saving.NamedDynamic
 import com.teamwizardry.librarianlib.features.saving.Savable
 import com.teamwizardry.librarianlib.features.utilities.RaycastUtils
-import kotlinx.coroutines.GlobalScope
-import kotlinx.coroutines.channels.Channel
-import kotlinx.coroutines.channels.SendChannel
-import kotlinx.coroutines.channels.produce
-import kotlinx.coroutines.delay
-import kotlinx.coroutines.launch
-import kotlinx.coroutines.selects.select
 import net.minecraft.entity.EntityLivingBase
 import net.minecraft.util.math.Vec3d
-import java.lang.StrictMath.pow
+import net.minecraft.world.World
 import java.util.*
 
 @Savable
 @NamedDynamic("t:t")
 interface Targeting {
-    operator fun invoke(context: SkillContext, from: Target, result: SendChannel<Pair<Target, Target>>)
+    /**
+     * Looks for targets from [from], and pushes them to [result].
+     * Results may be pushed in multiple batches, possibly over multiple ticks.
+     */
+    operator fun invoke(context: SkillContext, from: Target, result: TargetSink)
     val range: (context: SkillContext) -> Double
 }
 
@@ -59,16 +56,15 @@ data class Projectile(
     val projectileInfo: ProjectileInfo = ProjectileInfo(),
     val clientInfo: TargetingInfo<Projectile>? = null
 ) : Targeting {
-    override operator fun invoke(context: SkillContext, from: Target, result: SendChannel<Pair<Target, Target>>) {
+    override operator fun invoke(context: SkillContext, from: Target, result: TargetSink) {
         if (from is TargetWithWorld && from is TargetWithPosition) from.world.minecraftServer!!.runMainThread {
-            val r = Channel<Target>(Channel.UNLIMITED)
             val (velocity, inaccuracy, condition, precise, passtrough, width, height) = args(context)
             val p = SkillProjectileEntity(
                 from.world,
                 context,
                 from,
                 range(context),
-                r,
+                result,
                 condition,
                 precise,
                 passtrough, width, height
@@ -79,11 +75,6 @@ data class Projectile(
                 if (from is TargetWithLookVec) realShoot(from, 0.0f, velocity, inaccuracy)
             }
             from.world.spawnEntity(p)
-            GlobalScope.launch {
-                val h = ProjectileHolder(p)
-                for (e in r) result.send(h to e)
-                result.close()
-            }
             clientInfo(this, context, from)
         }
     }
@@ -119,9 +110,9 @@ data class Projectile(
 data class Self(
     val clientInfo: TargetingInfo<Self>? = null
 ) : Targeting {
-    override operator fun invoke(context: SkillContext, from: Target, result: SendChannel<Pair<Target, Target>>) {
+    override operator fun invoke(context: SkillContext, from: Target, result: TargetSink) {
         clientInfo(this, context, from)
-        result.offerOrSendAndClose(from to from)
+        TargetBuffer.single(context, from, from, result)
     }
 
     override val range: (SkillContext) -> Double get() = { .0 }
@@ -133,15 +124,15 @@ data class Raycast(
     override val range: (context: SkillContext) -> Double = { 3.0 },
     val clientInfo: TargetingInfo<Raycast>? = null
 ) : Targeting {
-    override operator fun invoke(context: SkillContext, from: Target, result: SendChannel<Pair<Target, Target>>) {
-        if (from is TargetWithPosition && from is TargetWithLookVec && from is TargetWithWorld) GlobalScope.launch {
+    override operator fun invoke(context: SkillContext, from: Target, result: TargetSink) {
+        if (from is TargetWithPosition && from is TargetWithLookVec && from is TargetWithWorld) {
             val range = range(context)
             val r = RaycastUtils.raycast(from.world, from.pos, from.lookVec, range)
             val e = getEntityLookedAt(from, from.world, r, range)
             val t: TargetWithPosition = if (e is EntityLivingBase) e.holder
             else PosHolder(r?.hitVec ?: (from.pos + from.lookVec * range))
-            result.offerOrSendAndClose(from to t)
-            clientInfo(this@Raycast, context, from)
+            TargetBuffer.single(context, from, t, result)
+            clientInfo(this, context, from)
         }
     }
 
@@ -156,45 +147,23 @@ fun Melee(clientInfo: TargetingInfo<Raycast>? = null) =
 data class Channelling(
     val targeting: Targeting, val args: (context: SkillContext) -> Args
 ) : Targeting by targeting {
-    override operator fun invoke(context: SkillContext, from: Target, result: SendChannel<Pair<Target, Target>>) {
-        GlobalScope.launch {
-            val (delayMillis, procs) = args(context)
-            val p = produce(capacity = Channel.UNLIMITED) {
-                repeat(procs) {
-                    if (it != 0) delay(delayMillis)
-                    val c = Channel<Pair<Target, Target>>(capacity = Channel.UNLIMITED)
-                    targeting(context, from, c)
-                    send(c)
-                }
-            }
+    override operator fun invoke(context: SkillContext, from: Target, result: TargetSink) {
+        val (delayTicks, procs) = args(context)
+        if (procs > 0) proc(context, from, result, delayTicks, procs)
+    }
 
-            val chs = LinkedList<Channel<Pair<Target, Target>>>()
-            val toAdd = LinkedList<Channel<Pair<Target, Target>>>()
-            var flag = true
-            while (flag || chs.isNotEmpty()) {
-                select<Unit> {
-                    if (flag) p.onReceiveOrNull {
-                        if (it != null) toAdd += it
-                        else flag = false
-                    }
-                    val iter = chs.iterator()
-                    while (iter.hasNext()) {
-                        iter.next().onReceiveOrNull {
-                            if (it != null) result.send(it)
-                            else iter.remove()
-                        }
-                    }
-                }
-                chs += toAdd
-                toAdd.clear()
+    private fun proc(context: SkillContext, from: Target, result: TargetSink, delayTicks: Int, remaining: Int) {
+        try {
+            targeting(context, from, result)
+        } finally {
+            if (remaining > 1) SkillScheduler.schedule(delayTicks) {
+                proc(context, from, result, delayTicks, remaining - 1)
             }
-
-            result.close()
         }
     }
 
     data class Args(
-        val delayMillis: Long, val procs: Int
+        val delayTicks: Int, val procs: Int
     )
 
     constructor(targeting: Targeting, args: Args) : this(targeting, { args })
@@ -206,24 +175,18 @@ data class AoE(
     override val range: (context: SkillContext) -> Double = { 3.0 }, val shape: Shape = Shape.CIRCLE,
     val clientInfo: TargetingInfo<AoE>? = null
 ) : Targeting {
-    override operator fun invoke(context: SkillContext, from: Target, result: SendChannel<Pair<Target, Target>>) {
+    override operator fun invoke(context: SkillContext, from: Target, result: TargetSink) {
         if (from is TargetWithPosition && from is TargetWithWorld) {
             clientInfo(this, context, from)
             val range = range(context)
-            val dist = pow(range, 2.0)
             val entPos = from.pos
-            val w = Vec3d(range, range, range)
-            val minPos = entPos - w
-            val maxPos = entPos + w
-            val e = from.world.getEntitiesWithinAABB(
-                EntityLivingBase::class.java, aabb(minPos, maxPos),
-                if (shape == Shape.SQUARE) null else Predicate<EntityLivingBase> {
-                    from.getDistanceSq(LivingHolder(it!!)) <= dist
-                }
-            )
-            GlobalScope.launch {
-                e.forEach { result.send(from to LivingHolder(it!!)) }
-                result.close()
+            TargetBuffer.use { buffer ->
+                val index = from.world.spatialIndex
+                if (shape == Shape.SQUARE) {
+                    val w = Vec3d(range, range, range)
+                    index.forEachIntersecting(aabb(entPos - w, entPos + w)) { buffer.add(from, it.holder) }
+                } else index.forEachWithin(entPos.x, entPos.y, entPos.z, range) { buffer.add(from, it.holder) }
+                if (!buffer.isEmpty) result.accept(context, buffer)
             }
         }
     }
@@ -247,50 +210,63 @@ data class Chain(
     val args: (context: SkillContext) -> Args = { Args() },
     val clientInfo: TargetingInfo<Chain>? = null
 ) : Targeting {
-    override operator fun invoke(context: SkillContext, from: Target, result: SendChannel<Pair<Target, Target>>) {
-        if (from is TargetWithPosition && from is TargetWithWorld) GlobalScope.launch {
-            val range = range(context)
-            val (maxTargets, delayMillis, repeat, condition, includeFrom) = args(context)
-            val w = Vec3d(range, range, range)
-            val dist = pow(range, 2.0)
-            val targets = LinkedHashSet<Target>()
-            targets.add(from)
-            if (includeFrom) result.send(from to from)
-            var previousTarget: TargetWithPosition = from
-            repeat(maxTargets) { c ->
-                if (c != 0) delay(delayMillis)
-                val entPos = previousTarget.pos
-                val minPos = entPos - w
-                val maxPos = entPos + w
-                val es = try {
-                    from.world.getEntitiesWithinAABB(EntityLivingBase::class.java, aabb(minPos, maxPos)) {
-                        val h = LivingHolder(it!!)
-                        @Suppress("UNNECESSARY_NOT_NULL_ASSERTION")
-                        h != previousTarget && previousTarget.getDistanceSq(h) <= dist &&
-                                (repeat || h !in targets) && (condition == null || (condition!!)(context, h))
-                    }
-                } catch (_: Exception) {
-                    listOf<EntityLivingBase>()
-                }
-                val e = es.minBy { previousTarget.getDistanceSq(LivingHolder(it)) }
-                if (e != null) {
-                    val h = LivingHolder(e)
-                    if (!repeat) targets += h
-                    result.send(previousTarget to h)
-                    clientInfo(this@Chain, context, from)
-                    previousTarget = h
-                } else {
-                    result.close()
-                    return@launch
-                }
+    override operator fun invoke(context: SkillContext, from: Target, result: TargetSink) {
+        if (from is TargetWithPosition && from is TargetWithWorld && ChainTracker.acquire(context.caster)) {
+            ChainRun(this, context, from, from.world, result, range(context), args(context)).start()
+        }
+    }
+
+    /**
+     * State of a single chain, bouncing once every [Args.delayTicks] on the [SkillScheduler].
+     */
+    private class ChainRun(
+        private val chain: Chain,
+        private val context: SkillContext,
+        private val origin: TargetWithPosition,
+        private val world: World,
+        private val result: TargetSink,
+        private val range: Double,
+        private val args: Args
+    ) {
+        private val targets = LinkedHashSet<Target>()
+        private var previous = origin
+        private var bounces = 0
+
+        fun start() {
+            targets += origin
+            var scheduled = false
+            try {
+                if (args.includeFrom) TargetBuffer.single(context, origin, origin, result)
+                scheduled = args.maxTargets > 0 && SkillScheduler.submit { bounce() }
+            } finally {
+                if (!scheduled) ChainTracker.release(context.caster)
+            }
+        }
+
+        private fun bounce() {
+            var scheduled = false
+            try {
+                val p = previous.pos
+                val e = world.spatialIndex.nearest(p.x, p.y, p.z, range) {
+                    val h = it.holder
+                    h != previous && (args.repeat || h !in targets) && args.condition?.invoke(context, h) != false
+                } ?: return
+                val h = e.holder
+                if (!args.repeat) targets += h
+                TargetBuffer.single(context, previous, h, result)
+                val info = chain.clientInfo
+                info(chain, context, origin)
+                previous = h
+                scheduled = ++bounces < args.maxTargets && SkillScheduler.schedule(args.delayTicks) { bounce() }
+            } finally {
+                if (!scheduled) ChainTracker.release(context.caster)
             }
-            result.close()
         }
     }
 
     data class Args(
         val maxTargets: Int = 5,
-        val delayMillis: Long = 500,
+        val delayTicks: Int = 10,
         val repeat: Boolean = false,
         val condition: Condition? = null,
         val includeFrom: Boolean = false
@@ -306,3 +282,31 @@ data class Chain(
     constructor(range: Double = 3.0, args: Args = Args(), clientInfo: TargetingInfo<Chain>? = null)
             : this({ range }, { args }, clientInfo)
 }
+
+/**
+ * Keeps track of the chains in flight for each caster.
+ */
+internal object ChainTracker {
+
+    @ConfigIntRange(1, Int.MAX_VALUE)
+    @ConfigProperty("skills", "Maximum amount of chains in flight per caster. Chains cast past this limit fizzle")
+    var maxPerCaster = 4
+        internal set
+
+    private val inFlight = IdentityHashMap<EntityLivingBase, Int>()
+
+    fun acquire(caster: EntityLivingBase): Boolean {
+        val count = inFlight[caster] ?: 0
+        if (count >= maxPerCaster) return false
+        inFlight[caster] = count + 1
+        return true
+    }
+
+    fun release(caster: EntityLivingBase) {
+        val count = inFlight[caster] ?: return
+        if (count <= 1) inFlight.remove(caster)
+        else inFlight[caster] = count - 1
+    }
+
+    fun clear() = inFlight.clear()
+}
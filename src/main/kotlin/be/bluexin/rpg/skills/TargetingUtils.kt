@@ -17,6 +17,117 @@
 
 package be.bluexin.rpg.skills
 
+import net.minecraft.entity.Entity
+import net.minecraft.util.EntitySelectors
+import net.minecraft.util.math.AxisAlignedBB
+import net.minecraft.util.math.MathHelper
+import net.minecraft.util.math.Vec3d
+import net.minecraft.world.World
+import kotlin.math.asin
+import kotlin.math.cos
+import kotlin.math.max
+import kotlin.math.min
+import kotlin.math.sqrt
+
 object TargetingUtils {
-    // TODO
-}
\ No newline at end of file
+
+    /**
+     * Finds the entities of type [clazz] within [range] of [origin], in a cone of [angle] degrees around [look].
+     * This is a single AABB query followed by a geometric filter, instead of one raycast per direction.
+     *
+     * When [flat] is set the cone is an horizontal arc (like a melee swing) : only the yaw is checked against [angle],
+     * and targets must be crossed vertically by the look direction.
+     * When [occlusion] is set, targets with a block between [origin] and their center are skipped.
+     */
+    fun <T : Entity> sweep(
+        world: World,
+        clazz: Class<T>,
+        origin: Vec3d,
+        look: Vec3d,
+        range: Double,
+        angle: Double,
+        flat: Boolean = false,
+        occlusion: Boolean = true,
+        exclude: Entity? = null,
+        filter: (T) -> Boolean = { true }
+    ): List<T> {
+        val ox = origin.x
+        val oy = origin.y
+        val oz = origin.z
+        val rangeSq = range * range
+        val halfAngle = Math.toRadians(MathHelper.clamp(angle, 0.0, 360.0) / 2)
+
+        val horizontal = sqrt(look.x * look.x + look.z * look.z)
+        // Looking straight up or down, there is no meaningful horizontal arc
+        val arc = flat && horizontal > 1.0E-4
+        val lx: Double
+        val ly: Double
+        val lz: Double
+        if (arc) {
+            lx = look.x / horizontal
+            ly = look.y / horizontal // vertical slope
+            lz = look.z / horizontal
+        } else {
+            val length = look.length()
+            lx = look.x / length
+            ly = look.y / length
+            lz = look.z / length
+        }
+
+        val candidates = world.getEntitiesWithinAABB(
+            clazz, AxisAlignedBB(ox - range, oy - range, oz - range, ox + range, oy + range, oz + range)
+        ) {
+            it !== exclude && it!!.canBeCollidedWith() && EntitySelectors.NOT_SPECTATING.apply(it) && filter(it)
+        }
+        if (candidates.isEmpty()) return candidates
+
+        val result = ArrayList<T>(candidates.size)
+        for (e in candidates) {
+            val bb = e.entityBoundingBox
+
+            // Reach is checked against the closest point of the hitbox, like a raycast would
+            val dx = MathHelper.clamp(ox, bb.minX, bb.maxX) - ox
+            val dy = MathHelper.clamp(oy, bb.minY, bb.maxY) - oy
+            val dz = MathHelper.clamp(oz, bb.minZ, bb.maxZ) - oz
+            if (dx * dx + dy * dy + dz * dz > rangeSq) continue
+
+            val tx = (bb.minX + bb.maxX) / 2 - ox
+            val ty = (bb.minY + bb.maxY) / 2 - oy
+            val tz = (bb.minZ + bb.maxZ) / 2 - oz
+            val halfWidth = (bb.maxX - bb.minX) / 2
+
+            if (arc) {
+                val distance = sqrt(tx * tx + tz * tz)
+                if (!inAngle(tx * lx + tz * lz, distance, halfWidth, halfAngle)) continue
+                val y1 = oy + ly * max(0.0, distance - halfWidth)
+                val y2 = oy + ly * (distance + halfWidth)
+                if (max(y1, y2) < bb.minY || min(y1, y2) > bb.maxY) continue
+            } else {
+                val distance = sqrt(tx * tx + ty * ty + tz * tz)
+                val radius = max(halfWidth, (bb.maxY - bb.minY) / 2)
+                if (!inAngle(tx * lx + ty * ly + tz * lz, distance, radius, halfAngle)) continue
+            }
+
+            result += e
+        }
+
+        // Only the geometric hits get the (expensive) block raytrace
+        if (occlusion) result.retainAll {
+            val bb = it.entityBoundingBox
+            val center = Vec3d((bb.minX + bb.maxX) / 2, (bb.minY + bb.maxY) / 2, (bb.minZ + bb.maxZ) / 2)
+            world.rayTraceBlocks(origin, center, false, true, false) == null
+        }
+
+        return result
+    }
+
+    /**
+     * Whether a target at [distance] in the direction giving [dot] with the look vector, with a size of [radius],
+     * overlaps a cone of [halfAngle] radians.
+     */
+    private fun inAngle(dot: Double, distance: Double, radius: Double, halfAngle: Double): Boolean {
+        if (distance <= radius) return true
+        val limit = halfAngle + asin(min(1.0, radius / distance))
+        return limit >= Math.PI || dot >= cos(limit) * distance
+    }
+}
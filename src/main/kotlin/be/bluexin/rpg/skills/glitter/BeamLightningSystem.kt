@@ -70,7 +70,8 @@ object BeamLightningSystem : ParticleSystem() {
 
     fun lightItUp(origin: Vec3d, destination: Vec3d) {
         // details here aren't important. Just generate a list of points
-        repeat(rng.nextInt(3, 5)) {
+        val bolts = ParticleBudget.take(ParticleBudget.LIGHTNING, rng.nextInt(3, 5), (origin + destination) / 2, BOLT_POINTS)
+        repeat(bolts) {
             val points: List<Vec3d> = generateLightning(origin, destination, 4)
             points.forEachIndexed { i, point ->
                 BeamLightningSystem.spawn(
@@ -88,6 +89,11 @@ object BeamLightningSystem : ParticleSystem() {
         }
     }
 
+    /**
+     * Points in a bolt, for 4 iterations of [generateLightning].
+     */
+    private const val BOLT_POINTS = 17
+
     private fun generateLightning(
         start: Vec3d,
         end: Vec3d,
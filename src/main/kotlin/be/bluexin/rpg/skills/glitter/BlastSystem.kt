@@ -95,7 +95,7 @@ object AoE : ParticleSystem() {
     }
 
     fun burst(origin: Vec3d, from: Color, to: Color, spread: Double) {
-        repeat(250) {
+        repeat(ParticleBudget.take(ParticleBudget.AOE, 250, origin)) {
             spawn(
                 rng.nextInt(10, 15),
                 origin,
@@ -226,7 +226,7 @@ class Self(val texture: String) : ParticleSystem() {
     }
 
     fun burst(origin: Vec3d, from: Color, to: Color, spread: Double) {
-        repeat(150) {
+        repeat(ParticleBudget.take(ParticleBudget.HEAL, 150, origin)) {
             spawn(
                 rng.nextInt(10, 15),
                 origin,
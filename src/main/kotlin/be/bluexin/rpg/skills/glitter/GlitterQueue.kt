@@ -0,0 +1,111 @@
+/*
+ * Copyright (C) 2019.  Arnaud 'Bluexin' Solé
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package be.bluexin.rpg.skills.glitter
+
+import be.bluexin.rpg.BlueRPG
+import com.teamwizardry.librarianlib.features.config.ConfigDoubleRange
+import com.teamwizardry.librarianlib.features.config.ConfigProperty
+import com.teamwizardry.librarianlib.features.network.PacketHandler
+import net.minecraft.entity.player.EntityPlayerMP
+import net.minecraft.world.World
+import net.minecraftforge.event.world.WorldEvent
+import net.minecraftforge.fml.common.FMLCommonHandler
+import net.minecraftforge.fml.common.Mod
+import net.minecraftforge.fml.common.eventhandler.SubscribeEvent
+import net.minecraftforge.fml.common.gameevent.TickEvent
+import java.util.*
+import kotlin.math.min
+
+/**
+ * Collects the visual effects of skills during a tick, and sends them at the end of it as one
+ * [PacketGlitterBundle] per interested player.
+ *
+ * Duplicate effects (same kind, same spot) within a tick are only sent once.
+ * Players only get the effects within their view distance (capped at [range]) that aren't behind them.
+ */
+@Mod.EventBusSubscriber(modid = BlueRPG.MODID)
+object GlitterQueue {
+
+    @ConfigDoubleRange(1.0, 256.0)
+    @ConfigProperty("skills", "Maximum distance at which players receive skill effects, in blocks")
+    var range = 64.0
+        internal set
+
+    @ConfigDoubleRange(.0, 256.0)
+    @ConfigProperty("skills", "Distance within which players receive skill effects even if they face away, in blocks")
+    var nearRange = 8.0
+        internal set
+
+    private class Pending {
+        val effects = ArrayList<GlitterPacket>()
+        val keys = HashSet<Any>()
+    }
+
+    private val pending = IdentityHashMap<World, Pending>()
+
+    /**
+     * Queues [effect] in [world] for the end of the tick. Server thread only.
+     */
+    fun add(world: World, effect: GlitterPacket) {
+        val p = pending.getOrPut(world, ::Pending)
+        if (p.keys.add(effect.dedupeKey)) p.effects += effect
+    }
+
+    @SubscribeEvent
+    @JvmStatic
+    fun serverTick(event: TickEvent.ServerTickEvent) {
+        if (event.phase != TickEvent.Phase.END || pending.isEmpty()) return
+        val viewDistance = FMLCommonHandler.instance().minecraftServerInstance.playerList.viewDistance * 16.0
+        val maxRange = min(range, viewDistance)
+        pending.forEach { (world, p) ->
+            for (player in world.playerEntities) {
+                if (player !is EntityPlayerMP) continue
+                var bundle: ArrayList<GlitterPacket>? = null
+                for (effect in p.effects) if (interested(player, effect, maxRange)) {
+                    if (bundle == null) bundle = ArrayList()
+                    bundle += effect
+                }
+                if (bundle != null) PacketHandler.NETWORK.sendTo(PacketGlitterBundle(bundle), player)
+            }
+        }
+        pending.clear()
+    }
+
+    private fun interested(player: EntityPlayerMP, effect: GlitterPacket, maxRange: Double): Boolean {
+        val origin = effect.origin
+        val dx = origin.x - player.posX
+        val dy = origin.y - (player.posY + player.eyeHeight)
+        val dz = origin.z - player.posZ
+        val distSq = dx * dx + dy * dy + dz * dz
+        val extent = effect.extent
+        val far = maxRange + extent
+        if (distSq > far * far) return false
+        val near = nearRange + extent
+        if (distSq <= near * near) return true
+        val look = player.getLook(1f)
+        val dot = dx * look.x + dy * look.y + dz * look.z
+        // Behind the player, further than the effect's own size
+        return dot >= -extent
+    }
+
+    @SubscribeEvent
+    @JvmStatic
+    fun worldUnload(event: WorldEvent.Unload) {
+        pending.remove(event.world)
+    }
+}
@@ -0,0 +1,142 @@
+/*
+ * Copyright (C) 2019.  Arnaud 'Bluexin' Solé
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package be.bluexin.rpg.skills.glitter
+
+import be.bluexin.rpg.BlueRPG
+import be.bluexin.rpg.devutil.RNG
+import com.teamwizardry.librarianlib.features.config.ConfigDoubleRange
+import com.teamwizardry.librarianlib.features.config.ConfigIntRange
+import com.teamwizardry.librarianlib.features.config.ConfigProperty
+import com.teamwizardry.librarianlib.features.kotlin.Minecraft
+import net.minecraft.util.math.Vec3d
+import net.minecraftforge.fml.common.Mod
+import net.minecraftforge.fml.common.eventhandler.SubscribeEvent
+import net.minecraftforge.fml.common.gameevent.TickEvent
+import net.minecraftforge.fml.relauncher.Side
+import kotlin.math.min
+import kotlin.random.Random
+
+/**
+ * Client-side budget shared by the skill particle systems.
+ *
+ * Requested particle counts are scaled down by the distance to the camera, the current frame time and [quality],
+ * then capped by what's left of the per frame budget, both for the requesting [Channel] and overall.
+ */
+@Mod.EventBusSubscriber(modid = BlueRPG.MODID, value = [Side.CLIENT])
+object ParticleBudget {
+
+    @ConfigDoubleRange(.0, 1.0)
+    @ConfigProperty("client", "Skill particle quality, from 0 (none) to 1 (full)")
+    var quality = 1.0
+        internal set
+
+    @ConfigIntRange(0, Int.MAX_VALUE)
+    @ConfigProperty("client", "Maximum amount of skill particles spawned per frame")
+    var maxPerFrame = 2000
+        internal set
+
+    @ConfigIntRange(0, Int.MAX_VALUE)
+    @ConfigProperty("client", "Maximum amount of particles a single skill particle system may spawn per frame")
+    var maxPerSystem = 800
+        internal set
+
+    @ConfigIntRange(1, 1000)
+    @ConfigProperty("client", "Frame rate below which skill particles get reduced")
+    var targetFps = 60
+        internal set
+
+    /**
+     * Distance to the camera under which particles are spawned at full count, in blocks.
+     */
+    private const val FULL_DISTANCE = 16.0
+
+    /**
+     * Lowest scale applied for distance or frame time.
+     */
+    private const val MIN_SCALE = .1
+
+    /**
+     * Per frame spending of one particle system.
+     */
+    class Channel(val name: String) {
+        internal var spent = 0
+    }
+
+    val AOE = Channel("aoe")
+    val HEAL = Channel("heal")
+    val PROJECTILE = Channel("projectile")
+    val TRAIL = Channel("trail")
+    val LIGHTNING = Channel("lightning")
+
+    private val channels = arrayOf(AOE, HEAL, PROJECTILE, TRAIL, LIGHTNING)
+
+    private val rng = Random(RNG.nextLong())
+
+    private var spent = 0
+
+    private var lastFrame = 0L
+
+    /**
+     * Smoothed frame time, in nanoseconds.
+     */
+    private var frameNanos = 0.0
+
+    /**
+     * Scales [requested] spawns at [pos] and takes them from the budget of [channel].
+     * Each spawn counts as [cost] particles.
+     * Fractional results are rounded randomly, so single particle spawns keep the right average.
+     *
+     * @return the amount of spawns to actually do
+     */
+    fun take(channel: Channel, requested: Int, pos: Vec3d, cost: Int = 1): Int {
+        val scaled = requested * quality * distanceScale(pos) * frameScale()
+        var count = scaled.toInt()
+        if (rng.nextDouble() < scaled - count) ++count
+        count = min(count, min(maxPerSystem - channel.spent, maxPerFrame - spent) / cost)
+        if (count <= 0) return 0
+        channel.spent += count * cost
+        spent += count * cost
+        return count
+    }
+
+    private fun distanceScale(pos: Vec3d): Double {
+        val camera = Minecraft().renderViewEntity ?: return 1.0
+        val distSq = camera.getDistanceSq(pos.x, pos.y, pos.z)
+        return if (distSq <= FULL_DISTANCE * FULL_DISTANCE) 1.0
+        else Math.max(FULL_DISTANCE / Math.sqrt(distSq), MIN_SCALE)
+    }
+
+    private fun frameScale(): Double {
+        val target = 1e9 / targetFps
+        return if (frameNanos <= target) 1.0 else Math.max(target / frameNanos, MIN_SCALE)
+    }
+
+    @SubscribeEvent
+    @JvmStatic
+    fun renderTick(event: TickEvent.RenderTickEvent) {
+        if (event.phase != TickEvent.Phase.START) return
+        val now = System.nanoTime()
+        if (lastFrame != 0L) {
+            val frame = (now - lastFrame).toDouble()
+            frameNanos = if (frameNanos == 0.0) frame else frameNanos * .9 + frame * .1
+        }
+        lastFrame = now
+        spent = 0
+        for (channel in channels) channel.spent = 0
+    }
+}
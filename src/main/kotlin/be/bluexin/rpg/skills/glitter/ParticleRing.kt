@@ -0,0 +1,43 @@
+/*
+ * Copyright (C) 2019.  Arnaud 'Bluexin' Solé
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package be.bluexin.rpg.skills.glitter
+
+/**
+ * Fixed-capacity ring of the particles spawned by a single emitter, so they can be killed along with it.
+ * Slots are recycled oldest first. With a capacity covering the emitter's spawn rate times the particle lifetime,
+ * recycled slots only ever hold particles that already expired.
+ */
+class ParticleRing(capacity: Int) {
+    private val particles = arrayOfNulls<DoubleArray>(capacity)
+
+    private var head = 0
+
+    fun add(particle: DoubleArray) {
+        particles[head] = particle
+        if (++head == particles.size) head = 0
+    }
+
+    fun forEach(action: (DoubleArray) -> Unit) {
+        for (particle in particles) if (particle != null) action(particle)
+    }
+
+    fun clear() {
+        particles.fill(null)
+        head = 0
+    }
+}
@@ -45,24 +45,41 @@ object ProjectileCore : ParticleSystem() {
 
     private val rng = Random(RNG.nextLong())
 
-    fun SkillProjectileEntity.renderParticles(store: MutableList<DoubleArray>) {
+    /**
+     * Core particles spawned per projectile per tick, at most.
+     */
+    private const val CORE_PER_TICK = 6
+
+    /**
+     * Exclusive upper bound of the lifetime of core particles.
+     */
+    private const val CORE_LIFETIME = 20
+
+    /**
+     * A ring large enough to track every live core particle of a projectile.
+     */
+    fun newRing() = ParticleRing(CORE_PER_TICK * CORE_LIFETIME)
+
+    fun SkillProjectileEntity.renderParticles(store: ParticleRing) {
         val pos = positionVector + vec(0, height / 2, 0)
         val motionVec = motionVec
-        val motionPartial = motionVec / 6
+        val motionPartial = motionVec / CORE_PER_TICK
         val color1 = Color(this.color1)
         val color2 = Color(this.color2)
-        repeat(6) {
-            store += spawn(
-                rng.nextInt(5, 20),
-                pos - motionPartial * it,
-                motionVec,
-                color1, color2,
-                rng.nextDouble(.25, .38)
+        repeat(ParticleBudget.take(ParticleBudget.PROJECTILE, CORE_PER_TICK, pos)) {
+            store.add(
+                spawn(
+                    rng.nextInt(5, CORE_LIFETIME),
+                    pos.x - motionPartial.x * it, pos.y - motionPartial.y * it, pos.z - motionPartial.z * it,
+                    motionVec,
+                    color1, color2,
+                    rng.nextDouble(.25, .38)
+                )
             )
         }
 
         val spread = .04
-        repeat(6) {
+        if (trailSystem != TrailSystem.Companion.None) repeat(ParticleBudget.take(ParticleBudget.TRAIL, 6, pos)) {
             trailSystem.spawn(
                 rng.nextInt(15, 30),
                 pos - motionPartial * it,
@@ -113,17 +130,27 @@ object ProjectileCore : ParticleSystem() {
     }
 
     fun spawn(lifetime: Int, position: Vec3d, velocity: Vec3d, from: Color, to: Color, size: Double) =
+        spawn(lifetime, position.x, position.y, position.z, velocity, from, to, size)
+
+    private fun spawn(
+        lifetime: Int,
+        x: Double, y: Double, z: Double,
+        velocity: Vec3d,
+        from: Color, to: Color,
+        size: Double
+    ) =
         this.addParticle(
             lifetime.toDouble(),
             size, // size(1)
-            position.x, position.y, position.z, // position(3)
-            position.x - velocity.x, position.y - velocity.y, position.z - velocity.z, // previousPosition(3)
+            x, y, z, // position(3)
+            x - velocity.x, y - velocity.y, z - velocity.z, // previousPosition(3)
             velocity.x, velocity.y, velocity.z, // velocity(3)
             from.red / 255.0, from.green / 255.0, from.blue / 255.0, from.alpha / 255.0, // fromColor(4)
             to.red / 255.0, to.green / 255.0, to.blue / 255.0, to.alpha / 255.0 // toColor(4)
         )
 
-    fun killParticles(particles: List<DoubleArray>) {
-        for (particle in particles) age.set(particle, Double.POSITIVE_INFINITY)
+    fun killParticles(particles: ParticleRing) {
+        particles.forEach { age.set(it, Double.POSITIVE_INFINITY) }
+        particles.clear()
     }
 }
\ No newline at end of file
@@ -19,22 +19,41 @@ package be.bluexin.rpg.skills.glitter
 
 import com.teamwizardry.librarianlib.features.autoregister.PacketRegister
 import com.teamwizardry.librarianlib.features.network.PacketBase
-import com.teamwizardry.librarianlib.features.network.PacketHandler
-import com.teamwizardry.librarianlib.features.network.sendToAllAround
 import com.teamwizardry.librarianlib.features.saving.Save
+import io.netty.buffer.ByteBuf
 import net.minecraft.entity.EntityLivingBase
+import net.minecraft.network.PacketBuffer
 import net.minecraft.util.math.Vec3d
 import net.minecraftforge.fml.common.network.simpleimpl.MessageContext
 import net.minecraftforge.fml.relauncher.Side
 import java.awt.Color
 
 abstract class GlitterPacket : PacketBase() {
-    fun send(around: EntityLivingBase) =
-        PacketHandler.NETWORK.sendToAllAround(this, around.world, around.positionVector, 64.0)
+    /**
+     * Queues this effect for the players around [around], see [GlitterQueue].
+     */
+    fun send(around: EntityLivingBase) = GlitterQueue.add(around.world, this)
 
     override fun handle(ctx: MessageContext) = this.shine()
 
     abstract fun shine()
+
+    /**
+     * Center of the effect, used for interest filtering.
+     */
+    internal abstract val origin: Vec3d
+
+    /**
+     * Distance from [origin] to the farthest point of the effect.
+     */
+    internal open val extent get() = 0.0
+
+    /**
+     * Effects with equal keys in the same tick are only sent once.
+     */
+    internal abstract val dedupeKey: Any
+
+    internal abstract fun write(buf: PacketBuffer)
 }
 
 @PacketRegister(Side.CLIENT)
@@ -43,6 +62,21 @@ class PacketLightning(
     @Save var to: Vec3d
 ) : GlitterPacket() {
     override fun shine() = BeamLightningSystem.lightItUp(from, to)
+
+    override val origin get() = Vec3d((from.x + to.x) / 2, (from.y + to.y) / 2, (from.z + to.z) / 2)
+
+    override val extent get() = from.distanceTo(to) / 2
+
+    override val dedupeKey get() = listOf(quantize(from), quantize(to))
+
+    override fun write(buf: PacketBuffer) {
+        writeVec(buf, from)
+        writeVec(buf, to)
+    }
+
+    internal companion object {
+        fun read(buf: PacketBuffer) = PacketLightning(readVec(buf), readVec(buf))
+    }
 }
 
 @PacketRegister(Side.CLIENT)
@@ -73,4 +107,84 @@ class PacketGlitter(
             Type.HEAL -> Heal.burst(pos, Color(color1, true), Color(color2, true), spread)
         }
     }
+
+    override val origin get() = pos
+
+    override val extent get() = spread
+
+    override val dedupeKey get() = listOf(type, quantize(pos), color1, color2)
+
+    override fun write(buf: PacketBuffer) {
+        buf.writeByte(type.ordinal)
+        writeVec(buf, pos)
+        buf.writeInt(color1)
+        buf.writeInt(color2)
+        buf.writeFloat(spread.toFloat())
+    }
+
+    internal companion object {
+        private val types = Type.values()
+
+        fun read(buf: PacketBuffer) = PacketGlitter(
+            types[buf.readByte().toInt()],
+            readVec(buf),
+            buf.readInt(),
+            buf.readInt(),
+            buf.readFloat().toDouble()
+        )
+    }
 }
+
+/**
+ * All the effects sent to a player during one tick, see [GlitterQueue].
+ */
+@PacketRegister(Side.CLIENT)
+class PacketGlitterBundle(private val effects: MutableList<GlitterPacket>) : PacketBase() {
+
+    @Suppress("unused")
+    internal constructor() : this(ArrayList())
+
+    override fun writeCustomBytes(buf: ByteBuf) {
+        val pb = PacketBuffer(buf)
+        pb.writeVarInt(effects.size)
+        for (effect in effects) {
+            pb.writeByte(if (effect is PacketLightning) LIGHTNING else GLITTER)
+            effect.write(pb)
+        }
+    }
+
+    override fun readCustomBytes(buf: ByteBuf) {
+        val pb = PacketBuffer(buf)
+        repeat(pb.readVarInt()) {
+            effects += when (pb.readByte().toInt()) {
+                LIGHTNING -> PacketLightning.read(pb)
+                else -> PacketGlitter.read(pb)
+            }
+        }
+    }
+
+    override fun handle(ctx: MessageContext) = effects.forEach(GlitterPacket::shine)
+
+    private companion object {
+        private const val LIGHTNING = 0
+        private const val GLITTER = 1
+    }
+}
+
+/**
+ * Positions are sent as floats, which is plenty for particles.
+ */
+private fun writeVec(buf: PacketBuffer, vec: Vec3d) {
+    buf.writeFloat(vec.x.toFloat())
+    buf.writeFloat(vec.y.toFloat())
+    buf.writeFloat(vec.z.toFloat())
+}
+
+private fun readVec(buf: PacketBuffer) =
+    Vec3d(buf.readFloat().toDouble(), buf.readFloat().toDouble(), buf.readFloat().toDouble())
+
+/**
+ * Snaps [vec] to an eighth of a block, so bursts on top of each other collapse.
+ */
+private fun quantize(vec: Vec3d) =
+    Triple(Math.round(vec.x * 8), Math.round(vec.y * 8), Math.round(vec.z * 8))
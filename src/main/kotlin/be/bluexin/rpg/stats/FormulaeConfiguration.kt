@@ -20,6 +20,7 @@ package be.bluexin.rpg.stats
 import be.bluexin.rpg.BlueRPG
 import be.bluexin.rpg.CommonProxy
 import be.bluexin.rpg.devutil.GearTypeDeserializer
+import be.bluexin.rpg.devutil.RNG
 import be.bluexin.rpg.devutil.Roll
 import be.bluexin.rpg.devutil.StatDeserializer
 import be.bluexin.rpg.gear.*
@@ -37,27 +38,86 @@ import java.io.File
 import java.io.PrintWriter
 import java.io.StringWriter
 import java.lang.reflect.Type
+import kotlin.math.min
+import kotlin.random.Random
 
 object FormulaeConfiguration {
 
     operator fun invoke(stat: Stat, ilvl: Int, rarity: Rarity, gearType: GearType, slot: EntityEquipmentSlot): Roll {
-        val (minE, maxE) = statFormulae[
-                if (gearType is ArmorType) Key(gearType, slot) else Key(gearType)
-        ]?.get(stat) ?: return Roll(-2, -1)
-        val generatorOptions = GeneratorOptions(ilvl, rarity)
-        val min = minE(generatorOptions)
-        val max = maxE(generatorOptions)
-        return Roll(min, max)
+        val table = tables[gearType, slot, stat] ?: return Roll(-2, -1)
+        return Roll(table.min(ilvl, rarity), table.max(ilvl, rarity))
     }
 
-    private data class TrickingDumbGsonRead(val key: Key, val formulae: Map<Stat, Range>)
+    /**
+     * Same as `invoke(stat, ilvl, rarity, gearType, slot).roll()`, without allocating.
+     * Inverted ranges roll their min instead of throwing.
+     */
+    fun roll(
+        stat: Stat,
+        ilvl: Int,
+        rarity: Rarity,
+        gearType: GearType,
+        slot: EntityEquipmentSlot,
+        random: Random = RNG
+    ): Int {
+        val table = tables[gearType, slot, stat] ?: return random.nextInt(-2, 0)
+        val min = table.min(ilvl, rarity)
+        val max = table.max(ilvl, rarity)
+        return if (max <= min) min else random.nextInt(min, max + 1)
+    }
+
+    private data class TrickingDumbGsonRead(val key: Key, val formulae: Map<Stat, Formula>)
     private data class TrickingDumbGsonWrite(val key: Key, val formulae: Map<Stat, FalseRoll>)
     private data class FalseRoll(val min: String, val max: String)
 
     private data class Key(val type: GearType, val slot: EntityEquipmentSlot? = null)
-    private data class Range(val min: ExpressionWrapper, val max: ExpressionWrapper)
+    private data class Formula(val min: ExpressionWrapper, val max: ExpressionWrapper)
+
+    /**
+     * Min and max rolls of a [Formula] for every (ilvl, rarity) up to [levels], indexed by `ilvl * RARITIES + rarity`.
+     * Levels past the table are evaluated on the fly.
+     */
+    private class RollTable(private val formula: Formula, private val levels: Int) {
+        private val mins = IntArray(levels * RARITIES)
+        private val maxs = IntArray(levels * RARITIES)
+
+        init {
+            for (ilvl in 0 until levels) for (rarity in Rarity.values()) {
+                val options = GeneratorOptions(ilvl, rarity)
+                val i = ilvl * RARITIES + rarity.ordinal
+                mins[i] = formula.min(options)
+                maxs[i] = formula.max(options)
+            }
+        }
+
+        fun min(ilvl: Int, rarity: Rarity) =
+            if (ilvl in 0 until levels) mins[ilvl * RARITIES + rarity.ordinal]
+            else formula.min(GeneratorOptions(ilvl, rarity))
+
+        fun max(ilvl: Int, rarity: Rarity) =
+            if (ilvl in 0 until levels) maxs[ilvl * RARITIES + rarity.ordinal]
+            else formula.max(GeneratorOptions(ilvl, rarity))
+    }
+
+    /**
+     * Roll tables by gear type and slot (armor only, other types use the same tables for every slot), then stat.
+     */
+    private class Tables(private val tables: Map<GearType, Array<Map<Stat, RollTable>?>>) {
+        operator fun get(type: GearType, slot: EntityEquipmentSlot, stat: Stat) = tables[type]?.get(slot.ordinal)?.get(stat)
+    }
 
-    private val statFormulae = mutableMapOf<Key, MutableMap<Stat, Range>>()
+    private val RARITIES = Rarity.values().size
+
+    /**
+     * Levels above this are not tabulated.
+     */
+    private const val MAX_TABULATED_LEVEL = 255
+
+    /**
+     * Published as a whole on reload, so rolls in progress (possibly on other threads) never see partial data.
+     */
+    @Volatile
+    private var tables = Tables(emptyMap())
 
     @ConfigProperty("general", "Formula for experience to next level. Input: current level as ilvl")
     var expToNextFormula = "50L * pow(ilvl, 2) + 50"
@@ -105,39 +165,64 @@ object FormulaeConfiguration {
             val a = s.map { TrickingDumbGsonWrite(it, m) }
             f.writer().use { gson.toJson(a.toList(), it) }
         }
-        val read = f.reader().use {
-            gson.fromJson<List<TrickingDumbGsonRead>>(
-                it,
-                object : TypeToken<List<TrickingDumbGsonRead>>() {}.type
-            )
-        }
-        read.forEach { (key, map) ->
-            val o = statFormulae[key]
-            if (o != null) o += map
-            else statFormulae[key] = map.toMutableMap()
+        val read = try {
+            f.reader().use {
+                gson.fromJson<List<TrickingDumbGsonRead>>(
+                    it,
+                    object : TypeToken<List<TrickingDumbGsonRead>>() {}.type
+                )
+            }
+        } finally {
+            compiled.clear()
         }
+        val formulae = HashMap<Key, MutableMap<Stat, Formula>>()
+        read.forEach { (key, map) -> formulae.getOrPut(key) { HashMap() } += map }
+        tables = buildTables(formulae)
     } catch (e: Exception) {
         BlueRPG.LOGGER.warn("Unable to load formulae file", e)
     }
 
+    private fun buildTables(formulae: Map<Key, Map<Stat, Formula>>): Tables {
+        val levels = min(Level.LEVEL_CAP, MAX_TABULATED_LEVEL) + 1
+        // Most stats share the same formulae
+        val shared = HashMap<Pair<String, String>, RollTable>()
+        val slots = EntityEquipmentSlot.values().size
+        val byType = HashMap<GearType, Array<Map<Stat, RollTable>?>>()
+        formulae.forEach { (key, stats) ->
+            val t = stats.mapValues { (_, formula) ->
+                shared.getOrPut(formula.min.text to formula.max.text) { RollTable(formula, levels) }
+            }
+            val bySlot = byType.getOrPut(key.type) { arrayOfNulls(slots) }
+            if (key.type is ArmorType) {
+                if (key.slot != null) bySlot[key.slot.ordinal] = t
+            } else if (key.slot == null) bySlot.fill(t)
+        }
+        return Tables(byType)
+    }
+
+    /**
+     * Expressions compiled during the current reload, by text.
+     */
+    private val compiled = HashMap<String, ExpressionWrapper>()
+
     private object ExpressionDeserializer : JsonDeserializer<ExpressionWrapper> {
         override fun deserialize(json: JsonElement, typeOfT: Type, context: JsonDeserializationContext) =
-            ExpressionWrapper("(int) (${json.asString})")
+            compiled.getOrPut(json.asString) { ExpressionWrapper("(int) (${json.asString})") }
     }
 
     @Suppress("unused")
     internal class GeneratorOptions(@JvmField val ilvl: Int, @JvmField val rarity: Rarity)
 
-    private class ExpressionWrapper(expression: String) {
+    private class ExpressionWrapper(val text: String) {
 
         private val expression = try {
-            Evaluator.compile(expression, LIB, Integer.TYPE)!!
+            Evaluator.compile(text, LIB, Integer.TYPE)!!
         } catch (e: CompilationException) {
             val sb = StringBuilder("An error occurred during theme loading. See more info below.\n")
                 .append("–––COMPILATION ERROR :\n")
                 .append(e.message).append('\n')
                 .append("                       ")
-                .append(expression).append('\n')
+                .append(text).append('\n')
             val column = e.column
             for (i in 0 until column + 23 - 1) sb.append(' ')
             sb.append('^')
@@ -0,0 +1,142 @@
+/*
+ * Copyright (C) 2019.  Arnaud 'Bluexin' Solé
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package be.bluexin.rpg.stats
+
+import be.bluexin.rpg.devutil.sampleInPlace
+import be.bluexin.rpg.gear.*
+import be.bluexin.saomclib.onServer
+import net.minecraft.entity.player.EntityPlayer
+import net.minecraft.nbt.NBTTagInt
+import net.minecraft.world.World
+import java.util.concurrent.ThreadLocalRandom
+import kotlin.random.Random
+
+/**
+ * Generates gear stats in batches, for loot drops and token openings.
+ *
+ * Rolls come straight from the precomputed [FormulaeConfiguration] tables.
+ * Stats are picked with a partial Fisher–Yates shuffle over reused arrays.
+ * Rolling is kept apart from applying the results to the stacks, which only happens on the server thread.
+ */
+object GearBatchGenerator {
+
+    private val STATS: Array<Stat> =
+        arrayOf(*PrimaryStat.values(), *SecondaryStat.values(), *FixedStat.values(), *TrickStat.values())
+
+    /**
+     * Amount of [STATS] that actually end up in a [StatsCollection] (everything but [TrickStat]s).
+     */
+    private val APPLIED = STATS.size - TrickStat.values().size
+
+    private val INDEX: Map<Stat, Int> = STATS.withIndex().associate { (i, stat) -> stat to i }
+
+    private val primaries = ThreadLocal.withInitial { PrimaryStat.values() }
+    private val secondaries = ThreadLocal.withInitial { SecondaryStat.values() }
+    private val rngs = ThreadLocal.withInitial { Random(ThreadLocalRandom.current().nextLong()) }
+
+    /**
+     * Everything needed to roll a single item, captured on the server thread.
+     */
+    private class Job(
+        val stats: GearStats,
+        val gear: IRPGGear,
+        val rarity: Rarity,
+        val ilvl: Int,
+        val allowRequirement: Boolean
+    )
+
+    private class Rolled(
+        val values: IntArray,
+        val durability: Int,
+        val requiredStat: PrimaryStat?,
+        val requiredValue: Int
+    )
+
+    /**
+     * Generates all of [gear] right away.
+     */
+    fun generate(gear: Collection<GearStats>, world: World, player: EntityPlayer?) {
+        world onServer {
+            for (job in jobs(gear)) apply(job, roll(job), player)
+        }
+    }
+
+    private fun jobs(gear: Collection<GearStats>) = gear.mapNotNull {
+        val item = it.itemStackIn.item as? IRPGGear ?: return@mapNotNull null
+        Job(it, item, it.rarity ?: it.generator.generateRarity(), it.ilvl, it.requiredValue != -1)
+    }
+
+    private fun roll(job: Job): Rolled {
+        val random = rngs.get()
+        val values = IntArray(APPLIED)
+        fun roll(stat: Stat) =
+            FormulaeConfiguration.roll(stat, job.ilvl, job.rarity, job.gear.type, job.gear.gearSlot, random)
+
+        fun add(stat: Stat) {
+            values[INDEX.getValue(stat)] += roll(stat)
+        }
+
+        val primaries = primaries.get()
+        val p = primaries.sampleInPlace(job.rarity.primaryRolls, random)
+        for (i in 0 until p) add(primaries[i])
+        val secondaries = secondaries.get()
+        val s = secondaries.sampleInPlace(job.rarity.secondaryRolls, random)
+        for (i in 0 until s) add(secondaries[i])
+
+        when (val gear = job.gear) {
+            is ArmorItem -> {
+                add(FixedStat.HEALTH)
+                add(FixedStat.PSYCHE)
+                add(FixedStat.ARMOR)
+            }
+            is OffHandItem -> {
+                add(FixedStat.HEALTH)
+                add(FixedStat.PSYCHE)
+                when (gear.type) {
+                    OffHandType.SHIELD -> add(FixedStat.F_BLOCK)
+                    OffHandType.PARRY_DAGGER -> add(FixedStat.F_PARRY)
+                    OffHandType.FOCUS -> add(FixedStat.F_CRIT_CHANCE)
+                }
+            }
+            else -> {
+                add(FixedStat.BASE_DAMAGE)
+                add(FixedStat.MAX_DAMAGE)
+            }
+        }
+
+        val durability = roll(TrickStat.DURABILITY)
+        return if (job.allowRequirement && p > 0 && random.nextInt(100) < roll(TrickStat.REQUIREMENT_CHANCE)) {
+            val requiredStat = primaries[random.nextInt(p)]
+            val requiredValue = values[INDEX.getValue(requiredStat)] * roll(TrickStat.REQUIREMENT_MULTIPLIER) / 100.0
+            Rolled(values, durability, requiredStat, requiredValue.toInt())
+        } else Rolled(values, durability, null, -1)
+    }
+
+    private fun apply(job: Job, rolled: Rolled, player: EntityPlayer?) {
+        val gearStats = job.stats
+        gearStats.stats.clear()
+        gearStats.rarity = job.rarity
+        for (i in 0 until APPLIED) if (rolled.values[i] != 0) gearStats.stats[STATS[i]] = rolled.values[i]
+        gearStats.durability = rolled.durability
+        if (rolled.requiredStat != null) gearStats.requiredStat = rolled.requiredStat
+        gearStats.requiredValue = rolled.requiredValue
+        gearStats.generated = true
+        gearStats.itemStackIn.setTagInfo("HideFlags", NBTTagInt(2))
+        if (player != null) gearStats.generateNameIfNeeded(player)
+    }
+}
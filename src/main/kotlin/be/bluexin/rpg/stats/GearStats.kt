@@ -18,24 +18,27 @@
 package be.bluexin.rpg.stats
 
 import be.bluexin.rpg.BlueRPG
-import be.bluexin.rpg.devutil.RNG
-import be.bluexin.rpg.devutil.random
+import be.bluexin.rpg.devutil.CapabilitySchema
+import be.bluexin.rpg.devutil.SerializeStatsCollection
+import be.bluexin.rpg.devutil.getEnum
+import be.bluexin.rpg.devutil.getStringOrNull
+import be.bluexin.rpg.devutil.setEnum
+import be.bluexin.rpg.devutil.setStringOrNull
 import be.bluexin.rpg.gear.*
 import be.bluexin.saomclib.capabilities.Key
 import be.bluexin.saomclib.message
-import be.bluexin.saomclib.onServer
 import com.teamwizardry.librarianlib.features.helpers.getNBTByte
 import com.teamwizardry.librarianlib.features.helpers.removeNBTEntry
 import com.teamwizardry.librarianlib.features.helpers.setNBTByte
-import com.teamwizardry.librarianlib.features.saving.AbstractSaveHandler
 import com.teamwizardry.librarianlib.features.saving.NamedDynamic
 import com.teamwizardry.librarianlib.features.saving.Savable
 import com.teamwizardry.librarianlib.features.saving.Save
+import com.google.common.collect.ImmutableMultimap
+import net.minecraft.entity.ai.attributes.AttributeModifier
 import net.minecraft.entity.player.EntityPlayer
 import net.minecraft.item.ItemStack
 import net.minecraft.nbt.NBTBase
 import net.minecraft.nbt.NBTTagCompound
-import net.minecraft.nbt.NBTTagInt
 import net.minecraft.util.EnumFacing
 import net.minecraft.util.ResourceLocation
 import net.minecraft.util.text.TextComponentTranslation
@@ -93,81 +96,34 @@ class GearStats(val itemStackIn: ItemStack) : StatCapability {
     @Save
     var requiredValue: Int = 0
 
-    fun generate(world: World, player: EntityPlayer?) {
-        world onServer {
-            val gear = itemStackIn.item as? IRPGGear ?: return
-            this.stats.clear()
-            if (rarity == null) rarity = generator.generateRarity()
-            val stats = rarity!!.rollStats()
-            stats.forEach { this.stats[it] += it.getRoll(ilvl, rarity!!, gear.type, gear.gearSlot) }
-            when (gear) {
-                is ArmorItem -> {
-                    this.stats[FixedStat.HEALTH] += FixedStat.HEALTH.getRoll(ilvl, rarity!!, gear.type, gear.gearSlot)
-                    this.stats[FixedStat.PSYCHE] += FixedStat.PSYCHE.getRoll(ilvl, rarity!!, gear.type, gear.gearSlot)
-                    this.stats[FixedStat.ARMOR] += FixedStat.ARMOR.getRoll(ilvl, rarity!!, gear.type, gear.gearSlot)
-                }
-                is OffHandItem -> {
-                    this.stats[FixedStat.HEALTH] += FixedStat.HEALTH.getRoll(ilvl, rarity!!, gear.type, gear.gearSlot)
-                    this.stats[FixedStat.PSYCHE] += FixedStat.PSYCHE.getRoll(ilvl, rarity!!, gear.type, gear.gearSlot)
-                    when (gear.type) {
-                        OffHandType.SHIELD -> this.stats[FixedStat.F_BLOCK] += FixedStat.F_BLOCK.getRoll(
-                            ilvl,
-                            rarity!!,
-                            gear.type,
-                            gear.gearSlot
-                        )
-                        OffHandType.PARRY_DAGGER -> this.stats[FixedStat.F_PARRY] += FixedStat.F_PARRY.getRoll(
-                            ilvl,
-                            rarity!!,
-                            gear.type,
-                            gear.gearSlot
-                        )
-                        OffHandType.FOCUS -> this.stats[FixedStat.F_CRIT_CHANCE] += FixedStat.F_CRIT_CHANCE.getRoll(
-                            ilvl,
-                            rarity!!,
-                            gear.type,
-                            gear.gearSlot
-                        )
-                    }
-                }
-                else -> {
-                    this.stats[FixedStat.BASE_DAMAGE] += FixedStat.BASE_DAMAGE.getRoll(
-                        ilvl,
-                        rarity!!,
-                        gear.type,
-                        gear.gearSlot
-                    )
-                    this.stats[FixedStat.MAX_DAMAGE] += FixedStat.MAX_DAMAGE.getRoll(
-                        ilvl,
-                        rarity!!,
-                        gear.type,
-                        gear.gearSlot
-                    )
-                }
-            }
-            durability = TrickStat.DURABILITY.getRoll(ilvl, rarity!!, gear.type, gear.gearSlot)
-            if (requiredValue != -1 && RNG.nextInt(100) < TrickStat.REQUIREMENT_CHANCE.getRoll(
-                    ilvl,
-                    rarity!!,
-                    gear.type,
-                    gear.gearSlot
-                )
-            ) {
-                val primaries = stats.mapNotNull { it as? PrimaryStat }
-                requiredStat = primaries.random()
-                requiredValue = (this[requiredStat!!] * TrickStat.REQUIREMENT_MULTIPLIER.getRoll(
-                    ilvl,
-                    rarity!!,
-                    gear.type,
-                    gear.gearSlot
-                ) / 100.0).toInt()
-            } else requiredValue = -1
-            generated = true
-            itemStackIn.setTagInfo("HideFlags", NBTTagInt(2))
-            if (player != null) this.generateNameIfNeeded(player)
+    @Transient
+    private var modifiers: ImmutableMultimap<String, AttributeModifier>? = null
+
+    /**
+     * [stats] and its version [modifiers] were built from.
+     */
+    @Transient
+    private var modifiersOf: StatsCollection? = null
+    @Transient
+    private var modifiersVersion = 0
+
+    /**
+     * Attribute modifiers of this gear when equipped, built by [gear] and cached until [stats] change.
+     */
+    fun attributeModifiers(gear: IRPGGear): ImmutableMultimap<String, AttributeModifier> {
+        val s = stats
+        var m = modifiers
+        if (m == null || modifiersOf !== s || modifiersVersion != s.version) {
+            m = gear.buildAttributeModifiers(this)
+            modifiers = m
+            modifiersOf = s
+            modifiersVersion = s.version
         }
+        return m
     }
 
+    fun generate(world: World, player: EntityPlayer?) = GearBatchGenerator.generate(listOf(this), world, player)
+
     fun generateNameIfNeeded(player: EntityPlayer) {
         if (name == null) {
             name = NameGenerator(itemStackIn, player)
@@ -212,7 +168,7 @@ class GearStats(val itemStackIn: ItemStack) : StatCapability {
             val nbtTagCompound = nbt as? NBTTagCompound ?: return
             instance.stats.clear()
             try {
-                AbstractSaveHandler.readAutoNBT(instance, nbtTagCompound.getTag(KEY.toString()), false)
+                Schema.read(instance, nbtTagCompound.getTag(KEY.toString()))
             } catch (e: Exception) {
                 BlueRPG.LOGGER.warn("Failed to read gear stats.", e)
                 // Resetting bad data is fine
@@ -221,14 +177,45 @@ class GearStats(val itemStackIn: ItemStack) : StatCapability {
 
         override fun writeNBT(capability: Capability<GearStats>, instance: GearStats, side: EnumFacing?): NBTBase {
             return NBTTagCompound().also {
-                it.setTag(
-                    KEY.toString(),
-                    AbstractSaveHandler.writeAutoNBT(instance, false)
-                )
+                it.setTag(KEY.toString(), Schema.write(instance))
             }
         }
     }
 
+    internal object Schema : CapabilitySchema<GearStats>(1) {
+        override fun write(instance: GearStats, nbt: NBTTagCompound) {
+            nbt.setBoolean("generated", instance.generated)
+            nbt.setEnum("generator", instance.generator)
+            nbt.setEnum("rarity", instance.rarity)
+            nbt.setEnum("binding", instance.binding)
+            instance.bound?.let { nbt.setUniqueId("bound", it) }
+            nbt.setStringOrNull("boundUsername", instance.boundUsername)
+            nbt.setInteger("ilvl", instance.ilvl)
+            nbt.setInteger("levelReq", instance.levelReq)
+            nbt.setStringOrNull("name", instance.name)
+            nbt.setTag("stats", SerializeStatsCollection.writeNBT(instance.stats, false))
+            nbt.setInteger("durability", instance.durability)
+            nbt.setEnum("requiredStat", instance.requiredStat)
+            nbt.setInteger("requiredValue", instance.requiredValue)
+        }
+
+        override fun read(instance: GearStats, nbt: NBTTagCompound, version: Int) {
+            instance.generated = nbt.getBoolean("generated")
+            instance.generator = nbt.getEnum<TokenType>("generator") ?: TokenType.CRAFTED
+            instance.rarity = nbt.getEnum<Rarity>("rarity")
+            instance.binding = nbt.getEnum<Binding>("binding") ?: Binding.BOE
+            instance.bound = if (nbt.hasUniqueId("bound")) nbt.getUniqueId("bound") else null
+            instance.boundUsername = nbt.getStringOrNull("boundUsername")
+            instance.ilvl = nbt.getInteger("ilvl")
+            instance.levelReq = nbt.getInteger("levelReq")
+            instance.name = nbt.getStringOrNull("name")
+            nbt.getTag("stats")?.let { SerializeStatsCollection.readNBT(it, instance.stats, false) }
+            instance.durability = nbt.getInteger("durability")
+            instance.requiredStat = nbt.getEnum<PrimaryStat>("requiredStat")
+            instance.requiredValue = nbt.getInteger("requiredValue")
+        }
+    }
+
     companion object {
         @Key
         val KEY = ResourceLocation(BlueRPG.MODID, "gear_stats")
@@ -18,7 +18,10 @@
 package be.bluexin.rpg.stats
 
 import be.bluexin.rpg.BlueRPG
+import be.bluexin.rpg.PlayerSync
 import be.bluexin.rpg.classes.playerClass
+import be.bluexin.rpg.devutil.CapabilitySchema
+import be.bluexin.rpg.devutil.SerializeStatsCollection
 import be.bluexin.rpg.devutil.fire
 import be.bluexin.saomclib.capabilities.AbstractCapability
 import be.bluexin.saomclib.capabilities.AbstractEntityCapability
@@ -32,6 +35,7 @@ import com.teamwizardry.librarianlib.features.saving.NamedDynamic
 import com.teamwizardry.librarianlib.features.saving.Save
 import com.teamwizardry.librarianlib.features.saving.SaveInPlace
 import net.minecraft.entity.player.EntityPlayer
+import net.minecraft.nbt.NBTTagCompound
 import net.minecraft.util.ResourceLocation
 import net.minecraft.util.math.MathHelper
 import net.minecraftforge.common.capabilities.Capability
@@ -52,13 +56,19 @@ class PlayerStats : AbstractEntityCapability(), StatCapability {
     var attributePoints = LEVELUP_ATTRIBUTES * 3
         set(value) {
             field = value
-            dirty()
+            PlayerSync.mark(reference.get() as? EntityPlayer, PlayerSync.Field.ATTRIBUTE_POINTS)
         }
 
     @Save
     lateinit var baseStats: StatsCollection
         internal set
 
+    /**
+     * Cached computed stat values.
+     */
+    lateinit var snapshot: StatSnapshot
+        private set
+
     operator fun get(stat: Stat) = baseStats[stat]
 
     override fun setup(param: Any): AbstractCapability {
@@ -67,6 +77,7 @@ class PlayerStats : AbstractEntityCapability(), StatCapability {
         val wr = WeakReference(param as EntityPlayer)
         level = Level(wr)
         baseStats = StatsCollection(wr)
+        snapshot = StatSnapshot(wr)
 
         return this
     }
@@ -81,23 +92,21 @@ class PlayerStats : AbstractEntityCapability(), StatCapability {
         it.loadFrom(this)
     }
 
-    internal var dirty = false
-        get() = field || level.dirty || baseStats.dirty
-        private set
-
-    private fun clean() {
-        dirty = false
-        level.clean()
-        baseStats.clean()
-    }
-
-    private fun dirty() {
-        dirty = true
-    }
+    internal object Schema : CapabilitySchema<PlayerStats>(1) {
+        override fun write(instance: PlayerStats, nbt: NBTTagCompound) {
+            nbt.setInteger("level", instance.level.level_a)
+            nbt.setLong("exp", instance.level.exp_a)
+            nbt.setInteger("attributePoints", instance.attributePoints)
+            nbt.setTag("baseStats", SerializeStatsCollection.writeNBT(instance.baseStats, false))
+        }
 
-    override fun sync() {
-        super.sync()
-        clean()
+        override fun read(instance: PlayerStats, nbt: NBTTagCompound, version: Int) {
+            instance.level.applySync(nbt.getInteger("level"), nbt.getLong("exp"))
+            instance.attributePoints = nbt.getInteger("attributePoints")
+            val baseStats = nbt.getTag("baseStats")
+            if (baseStats != null) SerializeStatsCollection.readNBT(baseStats, instance.baseStats, false)
+            else instance.baseStats.clear()
+        }
     }
 
     companion object {
@@ -131,7 +140,7 @@ class Level(private val player: WeakReference<EntityPlayer>) {
             if (value <= LEVEL_CAP && _level != value) {
                 val old = _level
                 _level = value
-                dirty()
+                PlayerSync.mark(player.get(), PlayerSync.Field.LEVEL)
                 with(player.get()) {
                     if (this != null) {
                         this.world onServer {
@@ -157,7 +166,7 @@ class Level(private val player: WeakReference<EntityPlayer>) {
             }
             if (evt != null && fire(evt) && evt.result != Event.Result.DENY) {
                 _exp = evt.newValue
-                dirty()
+                PlayerSync.mark(player.get(), PlayerSync.Field.EXP)
                 checkLevelup()
             }
         }
@@ -193,15 +202,12 @@ class Level(private val player: WeakReference<EntityPlayer>) {
         }
     }
 
-    internal var dirty = false
-        private set
-
-    internal fun clean() {
-        dirty = false
-    }
-
-    private fun dirty() {
-        dirty = true
+    /**
+     * Sets values received through [PlayerSync], without events nor level-up side effects.
+     */
+    internal fun applySync(level: Int, exp: Long) {
+        _level = level
+        _exp = exp
     }
 
     fun loadFrom(other: Level) {
@@ -0,0 +1,212 @@
+/*
+ * Copyright (C) 2019.  Arnaud 'Bluexin' Solé
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package be.bluexin.rpg.stats
+
+import be.bluexin.rpg.BlueRPG
+import be.bluexin.rpg.gear.IRPGGear
+import com.teamwizardry.librarianlib.features.helpers.getNBTByte
+import net.minecraft.entity.player.EntityPlayer
+import net.minecraft.entity.player.EntityPlayerMP
+import net.minecraft.inventory.EntityEquipmentSlot
+import net.minecraft.item.ItemStack
+import net.minecraft.nbt.NBTTagCompound
+import net.minecraftforge.event.entity.living.LivingEquipmentChangeEvent
+import net.minecraftforge.fml.common.Mod
+import net.minecraftforge.fml.common.eventhandler.EventPriority
+import net.minecraftforge.fml.common.eventhandler.SubscribeEvent
+import net.minecraftforge.fml.common.gameevent.PlayerEvent
+import net.minecraftforge.fml.common.gameevent.TickEvent
+import java.util.*
+
+/**
+ * Keeps the enabled state of equipped gear in line with its requirements.
+ *
+ * Changes only mark the slots they affect, which are evaluated together at the end of the tick.
+ * The evaluation takes every slot whose requirements may depend on the marked ones (through the stats they give),
+ * and finds which of them can stay enabled at once: starting from all of them, gear whose stat requirement isn't
+ * met by the rest is dropped until nothing changes. The resulting flags are then written in one go, instead of
+ * each disabled piece triggering another equipment change and another pass.
+ *
+ * Server side only.
+ */
+@Mod.EventBusSubscriber(modid = BlueRPG.MODID)
+object RequirementEngine {
+
+    private val SLOTS = EntityEquipmentSlot.values()
+
+    private const val ALL = (1 shl 6) - 1
+
+    /**
+     * Marked slots of each player, as bit masks by slot ordinal.
+     */
+    private val pending = IdentityHashMap<EntityPlayerMP, Int>()
+
+    private fun mark(player: EntityPlayer?, mask: Int) {
+        if (player !is EntityPlayerMP) return
+        pending[player] = (pending[player] ?: 0) or mask
+    }
+
+    /**
+     * Marks the equipped gear requiring [stat].
+     */
+    private fun markRequiring(player: EntityPlayer, stat: Stat) {
+        var mask = 0
+        for (slot in SLOTS) {
+            val stack = player.getItemStackFromSlot(slot)
+            if (stack.item is IRPGGear && stack.stats?.requiredStat == stat) mask = mask or (1 shl slot.ordinal)
+        }
+        if (mask != 0) mark(player, mask)
+    }
+
+    /**
+     * Marks the changed slot, and the equipped gear requiring stats the old or new item gives.
+     * Changes to our own [DISABLED] flag are ignored, as they come out of an evaluation.
+     */
+    @SubscribeEvent(priority = EventPriority.LOWEST)
+    @JvmStatic
+    fun equipmentChange(event: LivingEquipmentChangeEvent) {
+        val player = event.entityLiving as? EntityPlayer ?: return
+        if (player.world.isRemote || onlyFlagChanged(event.from, event.to)) return
+        val from = if (event.from.item is IRPGGear) event.from.stats else null
+        val to = if (event.to.item is IRPGGear) event.to.stats else null
+        var mask = 1 shl event.slot.ordinal
+        for (slot in SLOTS) {
+            val stack = player.getItemStackFromSlot(slot)
+            val required = (if (stack.item is IRPGGear) stack.stats?.requiredStat else null) ?: continue
+            if ((from?.get(required) ?: 0) != 0 || (to?.get(required) ?: 0) != 0) mask = mask or (1 shl slot.ordinal)
+        }
+        mark(player, mask)
+    }
+
+    @SubscribeEvent(priority = EventPriority.LOWEST)
+    @JvmStatic
+    fun statChange(event: StatChangeEvent) {
+        if (!event.player.world.isRemote) markRequiring(event.player, event.stat)
+    }
+
+    @SubscribeEvent
+    @JvmStatic
+    fun levelUp(event: LevelUpEvent) {
+        if (!event.player.world.isRemote) mark(event.player, ALL)
+    }
+
+    @SubscribeEvent
+    @JvmStatic
+    fun playerLoggedOut(event: PlayerEvent.PlayerLoggedOutEvent) {
+        pending.remove(event.player)
+    }
+
+    @SubscribeEvent
+    @JvmStatic
+    fun serverTick(event: TickEvent.ServerTickEvent) {
+        if (event.phase != TickEvent.Phase.END || pending.isEmpty()) return
+        pending.forEach { (player, mask) -> if (!player.hasDisconnected()) evaluate(player, mask) }
+        pending.clear()
+    }
+
+    private fun evaluate(player: EntityPlayerMP, marked: Int) {
+        val n = SLOTS.size
+        val stacks = Array(n) { player.getItemStackFromSlot(SLOTS[it]) }
+        val gear = Array(n) { if (stacks[it].item is IRPGGear) stacks[it].stats else null }
+        // Whether the gear in a slot gives its stats to the player, now and in the result
+        val applied = BooleanArray(n) { gear[it] != null && stacks[it].enabled && inGearSlot(stacks, it) }
+        val met = BooleanArray(n) { gear[it] != null && stacks[it].getNBTByte(DISABLED) == 0.toByte() }
+
+        // Every slot depending on a marked one, directly or not
+        var affected = marked
+        var grew = true
+        while (grew) {
+            grew = false
+            for (k in 0 until n) {
+                val required = gear[k]?.requiredStat ?: continue
+                if (affected and (1 shl k) != 0) continue
+                for (i in 0 until n) if (affected and (1 shl i) != 0 && (gear[i]?.get(required) ?: 0) != 0) {
+                    affected = affected or (1 shl k)
+                    grew = true
+                    break
+                }
+            }
+        }
+
+        // Start from everything passing the requirements that don't depend on other gear...
+        for (k in 0 until n) if (affected and (1 shl k) != 0) {
+            val s = gear[k]
+            met[k] = s != null && s.checkBinding(player) && s.levelReqMet(player)
+        }
+        // ...and drop what lacks stats, until stable
+        var changed = true
+        while (changed) {
+            changed = false
+            for (k in 0 until n) {
+                if (affected and (1 shl k) == 0 || !met[k]) continue
+                if (!statsMet(player, k, gear, applied, met, stacks)) {
+                    met[k] = false
+                    changed = true
+                }
+            }
+        }
+
+        for (k in 0 until n) if (affected and (1 shl k) != 0 && gear[k] != null) {
+            val disabled = stacks[k].getNBTByte(DISABLED) != 0.toByte()
+            if (disabled == met[k]) stacks[k].enabled = met[k]
+        }
+    }
+
+    /**
+     * Whether the stat requirement of the gear in [k] holds with the gear in [met] slots equipped.
+     * The player's own value is what's left of the current one once the stats of the [applied] gear are removed.
+     */
+    private fun statsMet(
+        player: EntityPlayer,
+        k: Int,
+        gear: Array<GearStats?>,
+        applied: BooleanArray,
+        met: BooleanArray,
+        stacks: Array<ItemStack>
+    ): Boolean {
+        val s = gear[k]!!
+        val required = s.requiredStat ?: return true
+        var value = player[required]
+        for (j in gear.indices) {
+            val g = gear[j] ?: continue
+            if (applied[j]) value -= g[required]
+            if (j != k && met[j] && stacks[j].getNBTByte(TWO_HAND) == 0.toByte() && inGearSlot(stacks, j)) {
+                value += g[required]
+            }
+        }
+        return value >= s.requiredValue
+    }
+
+    /**
+     * Whether [from] and [to] only differ by their [DISABLED] flag.
+     */
+    private fun onlyFlagChanged(from: ItemStack, to: ItemStack): Boolean {
+        if (from.item !== to.item || from.count != to.count || from.metadata != to.metadata) return false
+        if (from.getNBTByte(DISABLED) == to.getNBTByte(DISABLED) || !from.areCapsCompatible(to)) return false
+        return withoutFlag(from) == withoutFlag(to)
+    }
+
+    private fun withoutFlag(stack: ItemStack): NBTTagCompound? =
+        stack.tagCompound?.copy()?.apply { removeTag(DISABLED) }?.takeUnless { it.hasNoTags() }
+
+    private fun inGearSlot(stacks: Array<ItemStack>, i: Int) =
+        (stacks[i].item as? IRPGGear)?.gearSlot == SLOTS[i]
+
+    private const val DISABLED = "bluerpg:disabled"
+    private const val TWO_HAND = "bluerpg:twohandflag"
+}
@@ -0,0 +1,131 @@
+/*
+ * Copyright (C) 2019.  Arnaud 'Bluexin' Solé
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package be.bluexin.rpg.stats
+
+import be.bluexin.rpg.BlueRPG
+import be.bluexin.rpg.events.LivingEquipmentPostChangeEvent
+import be.bluexin.rpg.gear.WeaponAttribute
+import net.minecraft.entity.player.EntityPlayer
+import net.minecraftforge.event.entity.living.PotionEvent
+import net.minecraftforge.fml.common.Mod
+import net.minecraftforge.fml.common.eventhandler.EventPriority
+import net.minecraftforge.fml.common.eventhandler.SubscribeEvent
+import java.lang.ref.WeakReference
+
+/**
+ * Flat cache of a player's computed stat values, indexed by [index].
+ * It gets invalidated on equipment, stat, potion and level changes, and is recomputed on the next read.
+ * This is only used server side.
+ *
+ * Stats backed by attributes that aren't ours (vanilla or other mods may modify these at any time, like sprinting)
+ * are always read live.
+ */
+class StatSnapshot(private val player: WeakReference<EntityPlayer>) {
+
+    private val values = DoubleArray(SIZE)
+
+    private var valid = false
+
+    operator fun get(stat: Stat): Double {
+        val p = player.get() ?: return .0
+        val i = index(stat)
+        // Client side attributes are synced by vanilla, which doesn't go trough our invalidation events
+        if (i < 0 || !CACHED[i] || p.world.isRemote) return compute(p, stat)
+        if (!valid) refresh(p)
+        return values[i]
+    }
+
+    fun invalidate() {
+        valid = false
+    }
+
+    private fun refresh(p: EntityPlayer) {
+        for (i in 0 until SIZE) if (CACHED[i]) values[i] = compute(p, ALL[i])
+        valid = true
+    }
+
+    companion object {
+        private val PRIMARY = PrimaryStat.values()
+        private val SECONDARY = SecondaryStat.values()
+        private val FIXED = FixedStat.values()
+        private val WEAPON = WeaponAttribute.values()
+
+        private val SECONDARY_OFFSET = PRIMARY.size
+        private val FIXED_OFFSET = SECONDARY_OFFSET + SECONDARY.size
+        private val WEAPON_OFFSET = FIXED_OFFSET + FIXED.size
+
+        val SIZE = WEAPON_OFFSET + WEAPON.size
+
+        private val ALL: Array<Stat> = arrayOf<Stat>(*PRIMARY, *SECONDARY, *FIXED, *WEAPON)
+
+        private val CACHED by lazy {
+            BooleanArray(SIZE) { ALL[it].attribute.name.startsWith("${BlueRPG.MODID}.") }
+        }
+
+        /**
+         * Index of [stat] in a snapshot, or -1 if it isn't part of snapshots.
+         */
+        fun index(stat: Stat) = when (stat) {
+            is PrimaryStat -> stat.ordinal
+            is SecondaryStat -> SECONDARY_OFFSET + stat.ordinal
+            is FixedStat -> FIXED_OFFSET + stat.ordinal
+            is WeaponAttribute -> WEAPON_OFFSET + stat.ordinal
+            else -> -1
+        }
+
+        internal fun compute(player: EntityPlayer, stat: Stat): Double {
+            val value = player.getEntityAttribute(stat.attribute).attributeValue
+            return if (stat.hasTransform) value / 100.0 else value
+        }
+    }
+}
+
+/**
+ * Invalidates [StatSnapshot]s when the underlying attributes might have changed.
+ */
+@Mod.EventBusSubscriber(modid = BlueRPG.MODID)
+object StatSnapshotInvalidator {
+
+    private fun invalidate(player: Any?) {
+        if (player is EntityPlayer && !player.world.isRemote) player.stats.snapshot.invalidate()
+    }
+
+    @SubscribeEvent(priority = EventPriority.LOWEST, receiveCanceled = true)
+    @JvmStatic
+    fun equipmentChange(event: LivingEquipmentPostChangeEvent) = invalidate(event.entityLiving)
+
+    @SubscribeEvent(priority = EventPriority.LOWEST, receiveCanceled = true)
+    @JvmStatic
+    fun statChange(event: StatChangeEvent) = invalidate(event.player)
+
+    @SubscribeEvent
+    @JvmStatic
+    fun levelUp(event: LevelUpEvent) = invalidate(event.player)
+
+    @SubscribeEvent(priority = EventPriority.LOWEST)
+    @JvmStatic
+    fun potionAdded(event: PotionEvent.PotionAddedEvent) = invalidate(event.entityLiving)
+
+    @SubscribeEvent(priority = EventPriority.LOWEST)
+    @JvmStatic
+    fun potionRemoved(event: PotionEvent.PotionRemoveEvent) = invalidate(event.entityLiving)
+
+    @SubscribeEvent(priority = EventPriority.LOWEST)
+    @JvmStatic
+    fun potionExpired(event: PotionEvent.PotionExpiryEvent) = invalidate(event.entityLiving)
+}
@@ -18,20 +18,21 @@
 package be.bluexin.rpg.stats
 
 import be.bluexin.rpg.BlueRPG
+import be.bluexin.rpg.PlayerSync
 import be.bluexin.rpg.devutil.fire
 import be.bluexin.rpg.gear.GearType
 import be.bluexin.rpg.gear.Rarity
+import be.bluexin.rpg.gear.WeaponAttribute
 import com.teamwizardry.librarianlib.features.kotlin.localize
 import com.teamwizardry.librarianlib.features.saving.NamedDynamic
 import com.teamwizardry.librarianlib.features.saving.Savable
-import com.teamwizardry.librarianlib.features.saving.Save
-import com.teamwizardry.librarianlib.features.saving.SaveInPlace
 import net.minecraft.entity.EntityLivingBase
 import net.minecraft.entity.SharedMonsterAttributes
 import net.minecraft.entity.ai.attributes.IAttribute
 import net.minecraft.entity.ai.attributes.RangedAttribute
 import net.minecraft.entity.player.EntityPlayer
 import net.minecraft.inventory.EntityEquipmentSlot
+import net.minecraft.network.PacketBuffer
 import net.minecraftforge.fml.common.eventhandler.Event
 import net.minecraftforge.fml.relauncher.Side
 import net.minecraftforge.fml.relauncher.SideOnly
@@ -39,14 +40,31 @@ import java.lang.ref.WeakReference
 import java.text.DecimalFormat
 import java.util.*
 
-@SaveInPlace
-class StatsCollection(
-    private val reference: WeakReference<out Any>,
-    @Save internal var collection: MutableMap<Stat, Int> = HashMap()
-) {
-    // TODO: move collection to `val` and `withDefault` (instead of getOrDefault) once liblib updates
+/**
+ * Sparse primitive storage of stat values, sorted by [StatIds] id. Absent stats are worth 0.
+ *
+ * Saved and synced through [be.bluexin.rpg.devutil.SerializeStatsCollection].
+ */
+class StatsCollection(private val reference: WeakReference<out Any>) {
+
+    private var ids = ShortArray(INITIAL_CAPACITY)
+
+    private var values = IntArray(INITIAL_CAPACITY)
+
+    var size = 0
+        private set
+
+    /**
+     * Bumped on every change, for caches derived from this collection.
+     */
+    var version = 0
+        private set
+
+    operator fun get(stat: Stat): Int {
+        val i = indexOf(StatIds.id(stat))
+        return if (i >= 0) values[i] else 0
+    }
 
-    operator fun get(stat: Stat): Int = collection.getOrDefault(stat, 0)
     operator fun set(stat: Stat, value: Int): Boolean {
         val r = reference.get()
         val evt = if (r is EntityPlayer) {
@@ -54,38 +72,148 @@ class StatsCollection(
         } else null
 
         return if (evt == null || (fire(evt) && evt.result != Event.Result.DENY)) {
-            if (evt?.newValue ?: value != 0) collection[stat] = evt?.newValue ?: value
-            else collection.remove(stat)
+            put(StatIds.id(stat), evt?.newValue ?: value)
             if (r is EntityLivingBase) r.getEntityAttribute(stat.attribute).baseValue = evt!!.newValue.toDouble()
-            dirty()
+            PlayerSync.markStat(r as? EntityPlayer, stat)
             true
         } else false
     }
 
-    operator fun invoke() = collection.asSequence()
+    operator fun invoke() = Sequence { iterator() }
 
-    operator fun iterator(): Iterator<Map.Entry<Stat, Int>> = collection.iterator()
+    operator fun iterator(): Iterator<Map.Entry<Stat, Int>> = object : Iterator<Map.Entry<Stat, Int>> {
+        private var i = 0
+
+        override fun hasNext() = i < size
+
+        override fun next(): Map.Entry<Stat, Int> {
+            if (i >= size) throw NoSuchElementException()
+            val entry = java.util.AbstractMap.SimpleImmutableEntry(StatIds[ids[i].toInt()]!!, values[i])
+            ++i
+            return entry
+        }
+    }
 
-    fun copy() = StatsCollection(WeakReference<Any>(null), HashMap(collection))
+    fun copy() = StatsCollection(WeakReference<Any>(null)).also { it.load(this) }
 
     fun load(other: StatsCollection) {
-        this.collection = other.collection
+        this.ids = other.ids.copyOf()
+        this.values = other.values.copyOf()
+        this.size = other.size
+        ++version
     }
 
-    internal var dirty = false
-        private set
+    fun clear() {
+        size = 0
+        ++version
+    }
 
-    internal fun clean() {
-        dirty = false
+    fun isEmpty() = size == 0
+
+    /**
+     * Writes the amount of stats, then (id, value) varint pairs. Values are zigzag encoded.
+     */
+    internal fun write(buf: PacketBuffer) {
+        buf.writeVarInt(size)
+        for (i in 0 until size) {
+            buf.writeVarInt(ids[i].toInt())
+            buf.writeVarInt((values[i] shl 1) xor (values[i] shr 31))
+        }
     }
 
-    internal fun dirty() {
-        dirty = true
+    /**
+     * Replaces the content of this collection with what [write] wrote. Unknown stats are dropped.
+     */
+    internal fun read(buf: PacketBuffer) {
+        clear()
+        repeat(buf.readVarInt()) {
+            val id = buf.readVarInt()
+            val zigzag = buf.readVarInt()
+            if (StatIds[id] != null) put(id, (zigzag ushr 1) xor -(zigzag and 1))
+        }
     }
 
-    fun clear() = collection.clear()
+    /**
+     * Sets [stat] without firing events nor touching attributes, for loading.
+     */
+    internal fun put(stat: Stat, value: Int) = put(StatIds.id(stat), value)
+
+    private fun put(id: Int, value: Int) {
+        ++version
+        val i = indexOf(id)
+        when {
+            value == 0 -> if (i >= 0) {
+                System.arraycopy(ids, i + 1, ids, i, size - i - 1)
+                System.arraycopy(values, i + 1, values, i, size - i - 1)
+                --size
+            }
+            i >= 0 -> values[i] = value
+            else -> {
+                val at = -i - 1
+                if (size == ids.size) {
+                    ids = ids.copyOf(size * 2)
+                    values = values.copyOf(size * 2)
+                }
+                System.arraycopy(ids, at, ids, at + 1, size - at)
+                System.arraycopy(values, at, values, at + 1, size - at)
+                ids[at] = id.toShort()
+                values[at] = value
+                ++size
+            }
+        }
+    }
 
-    fun isEmpty() = collection.isEmpty()
+    /**
+     * Binary search of [id], same contract as [java.util.Arrays.binarySearch].
+     */
+    private fun indexOf(id: Int): Int {
+        var low = 0
+        var high = size - 1
+        while (low <= high) {
+            val mid = (low + high) ushr 1
+            val m = ids[mid].toInt()
+            when {
+                m < id -> low = mid + 1
+                m > id -> high = mid - 1
+                else -> return mid
+            }
+        }
+        return -(low + 1)
+    }
+
+    private companion object {
+        private const val INITIAL_CAPACITY = 4
+    }
+}
+
+/**
+ * Stable numeric ids of every [Stat], used to store and encode [StatsCollection]s.
+ * An id is the stat family (index in [FAMILIES]) in the high byte and the ordinal in the low byte :
+ * new stats must be appended at the end of their enum, and new families at the end of [FAMILIES].
+ */
+object StatIds {
+
+    private val FAMILIES: Array<Array<out Stat>> = arrayOf(
+        PrimaryStat.values(),
+        SecondaryStat.values(),
+        FixedStat.values(),
+        WeaponAttribute.values(),
+        TrickStat.values()
+    )
+
+    fun id(stat: Stat) = when (stat) {
+        is PrimaryStat -> stat.ordinal
+        is SecondaryStat -> 1 shl 8 or stat.ordinal
+        is FixedStat -> 2 shl 8 or stat.ordinal
+        is WeaponAttribute -> 3 shl 8 or stat.ordinal
+        is TrickStat -> 4 shl 8 or stat.ordinal
+        else -> throw IllegalArgumentException("$stat has no stable id")
+    }
+
+    /**
+     * The stat with the given [id], or null if there is none.
+     */
+    operator fun get(id: Int): Stat? = FAMILIES.getOrNull(id ushr 8)?.getOrNull(id and 0xFF)
 }
 
 /*
@@ -95,11 +223,9 @@ Modifier operations :
     - 2: multiply by (1.0 + x)
  */
 
-operator fun EntityLivingBase.get(stat: Stat) = when {
-    this !is EntityPlayer -> 0.0
-    stat.hasTransform -> this.getEntityAttribute(stat.attribute).attributeValue / 100.0
-    else -> this.getEntityAttribute(stat.attribute).attributeValue
-}
+operator fun EntityLivingBase.get(stat: Stat) =
+    if (this !is EntityPlayer) 0.0
+    else this.getCapability(PlayerStats.Capability, null)?.snapshot?.get(stat) ?: StatSnapshot.compute(this, stat)
 
 @NamedDynamic(resourceLocation = "b:s")
 @Savable
@@ -223,7 +349,7 @@ enum class PrimaryStat(uuid: Array<String>) : Stat {
     override val uuid = uuid.map { UUID.fromString(it) }.toTypedArray()
 
     override fun getRoll(ilvl: Int, rarity: Rarity, gearType: GearType, slot: EntityEquipmentSlot) =
-        FormulaeConfiguration(this, ilvl, rarity, gearType, slot).roll()
+        FormulaeConfiguration.roll(this, ilvl, rarity, gearType, slot)
 }
 
 @NamedDynamic(resourceLocation = "b:ss")
@@ -473,7 +599,7 @@ enum class SecondaryStat(uuid: Array<String>, attribute: IAttribute? = null) : S
     override val uuid = uuid.map { UUID.fromString(it) }.toTypedArray()
 
     override fun getRoll(ilvl: Int, rarity: Rarity, gearType: GearType, slot: EntityEquipmentSlot) =
-        FormulaeConfiguration(this, ilvl, rarity, gearType, slot).roll()
+        FormulaeConfiguration.roll(this, ilvl, rarity, gearType, slot)
 
     override val hasTransform = true
 
@@ -592,7 +718,7 @@ enum class FixedStat(uuid: Array<String>, attribute: IAttribute? = null) : Stat
     override val uuid = uuid.map { UUID.fromString(it) }.toTypedArray()
 
     override fun getRoll(ilvl: Int, rarity: Rarity, gearType: GearType, slot: EntityEquipmentSlot) =
-        FormulaeConfiguration(this, ilvl, rarity, gearType, slot).roll()
+        FormulaeConfiguration.roll(this, ilvl, rarity, gearType, slot)
 }
 
 /**
@@ -609,7 +735,7 @@ enum class TrickStat : Stat {
         get() = throw IllegalStateException("$this is not a true stat!")
 
     override fun getRoll(ilvl: Int, rarity: Rarity, gearType: GearType, slot: EntityEquipmentSlot) =
-        FormulaeConfiguration(this, ilvl, rarity, gearType, slot).roll()
+        FormulaeConfiguration.roll(this, ilvl, rarity, gearType, slot)
 }
 
 @Savable
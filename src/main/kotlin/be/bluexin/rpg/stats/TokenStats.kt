@@ -18,12 +18,14 @@
 package be.bluexin.rpg.stats
 
 import be.bluexin.rpg.BlueRPG
+import be.bluexin.rpg.devutil.CapabilitySchema
+import be.bluexin.rpg.devutil.getEnum
+import be.bluexin.rpg.devutil.setEnum
 import be.bluexin.rpg.gear.Binding
 import be.bluexin.rpg.gear.GearTokenItem
 import be.bluexin.rpg.gear.GearTypeGenerator
 import be.bluexin.rpg.gear.Rarity
 import be.bluexin.saomclib.capabilities.Key
-import com.teamwizardry.librarianlib.features.saving.AbstractSaveHandler
 import com.teamwizardry.librarianlib.features.saving.NamedDynamic
 import com.teamwizardry.librarianlib.features.saving.Savable
 import com.teamwizardry.librarianlib.features.saving.Save
@@ -90,7 +92,7 @@ class TokenStats(val itemStackIn: ItemStack) : StatCapability {
         ) {
             val nbtTagCompound = nbt as? NBTTagCompound ?: return
             try {
-                AbstractSaveHandler.readAutoNBT(instance, nbtTagCompound.getTag(KEY.toString()), false)
+                Schema.read(instance, nbtTagCompound.getTag(KEY.toString()))
             } catch (e: Exception) {
                 BlueRPG.LOGGER.warn("Failed to read token stats.", e)
                 // Resetting bad data is fine
@@ -99,14 +101,27 @@ class TokenStats(val itemStackIn: ItemStack) : StatCapability {
 
         override fun writeNBT(capability: Capability<TokenStats>, instance: TokenStats, side: EnumFacing?): NBTBase {
             return NBTTagCompound().also {
-                it.setTag(
-                    KEY.toString(),
-                    AbstractSaveHandler.writeAutoNBT(instance, false)
-                )
+                it.setTag(KEY.toString(), Schema.write(instance))
             }
         }
     }
 
+    internal object Schema : CapabilitySchema<TokenStats>(1) {
+        override fun write(instance: TokenStats, nbt: NBTTagCompound) {
+            nbt.setEnum("rarity", instance.rarity)
+            nbt.setEnum("binding", instance.binding)
+            nbt.setInteger("ilvl", instance.ilvl)
+            nbt.setInteger("levelReq", instance.levelReq)
+        }
+
+        override fun read(instance: TokenStats, nbt: NBTTagCompound, version: Int) {
+            instance.rarity = nbt.getEnum<Rarity>("rarity")
+            instance.binding = nbt.getEnum<Binding>("binding") ?: Binding.BOE
+            instance.ilvl = nbt.getInteger("ilvl")
+            instance.levelReq = nbt.getInteger("levelReq")
+        }
+    }
+
     companion object {
         @Key
         val KEY = ResourceLocation(BlueRPG.MODID, "token_stats")
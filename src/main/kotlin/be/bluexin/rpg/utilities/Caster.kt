@@ -17,13 +17,13 @@
 
 package be.bluexin.rpg.utilities
 
+import be.bluexin.rpg.devutil.TickWheel
 import be.bluexin.saomclib.onServer
 import com.mojang.authlib.GameProfile
 import com.teamwizardry.librarianlib.features.autoregister.TileRegister
 import com.teamwizardry.librarianlib.features.base.block.tile.BlockModContainer
-import com.teamwizardry.librarianlib.features.base.block.tile.TileModInventoryTickable
+import com.teamwizardry.librarianlib.features.base.block.tile.TileModInventory
 import com.teamwizardry.librarianlib.features.kotlin.isNotEmpty
-import com.teamwizardry.librarianlib.features.saving.Save
 import net.minecraft.block.material.Material
 import net.minecraft.block.state.IBlockState
 import net.minecraft.util.EnumFacing
@@ -50,10 +50,9 @@ object CasterBlock : BlockModContainer("caster", Material.CLOTH) {
 }
 
 @TileRegister("block_caster")
-class CasterTE : TileModInventoryTickable(1) {
+class CasterTE : TileModInventory(1) {
 
-    @Save
-    private var time = 0
+    private var task: TickWheel.Task? = null
 
     private val gp by lazy { GameProfile(UUID.randomUUID(), "block_caster") }
     private val fpr by lazy {
@@ -64,23 +63,36 @@ class CasterTE : TileModInventoryTickable(1) {
         })
     }
 
-    override fun tick() {
+    override fun onLoad() {
+        super.onLoad()
         world onServer {
-            if (world.isBlockPowered(pos) && time++ % 60 == 0) {
+            task = TickWheel.every("caster", 60) {
+                if (world.isBlockPowered(pos)) cast()
+            }
+        }
+    }
+
+    override fun invalidate() {
+        super.invalidate()
+        task?.cancel()
+    }
+
+    override fun onChunkUnload() {
+        super.onChunkUnload()
+        task?.cancel()
+    }
 
-                val iss = getStackInSlot(0)
-                if (iss.isNotEmpty) {
-                    val fp = fpr.get()
-                    if (fp != null) {
-                        when (iss.maxItemUseDuration) {
-                            72000 -> iss.onPlayerStoppedUsing(world, fp, 0)
-                            0 -> iss.useItemRightClick(world, fp, EnumHand.MAIN_HAND)
-                            else -> iss.onItemUseFinish(world, fp)
-                        }
-                    }
+    private fun cast() {
+        val iss = getStackInSlot(0)
+        if (iss.isNotEmpty) {
+            val fp = fpr.get()
+            if (fp != null) {
+                when (iss.maxItemUseDuration) {
+                    72000 -> iss.onPlayerStoppedUsing(world, fp, 0)
+                    0 -> iss.useItemRightClick(world, fp, EnumHand.MAIN_HAND)
+                    else -> iss.onItemUseFinish(world, fp)
                 }
-                time = 1
             }
         }
     }
-}
\ No newline at end of file
+}
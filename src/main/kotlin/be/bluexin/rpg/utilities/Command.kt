@@ -17,7 +17,9 @@
 
 package be.bluexin.rpg.utilities
 
+import be.bluexin.rpg.EntityTracking
 import be.bluexin.rpg.classes.playerClass
+import be.bluexin.rpg.devutil.TickWheel
 import be.bluexin.rpg.devutil.get
 import be.bluexin.rpg.gear.RarityConfiguration
 import be.bluexin.rpg.skills.SkillContext
@@ -51,6 +53,24 @@ object Command : CommandBase() {
             FormulaeConfiguration.reload()
             RarityConfiguration.reload()
             sender.sendMessage(TextComponentTranslation("bluerpg.command.reload.success"))
+        }),
+        TIMINGS({ _, sender, _ ->
+            TickWheel.timings().forEach {
+                sender.sendMessage(
+                    TextComponentTranslation(
+                        "bluerpg.command.timings.entry",
+                        it.name,
+                        it.runs,
+                        "%.3f".format(it.averageNanos / 1e6),
+                        "%.3f".format(it.maxNanos / 1e6)
+                    )
+                )
+            }
+        }),
+        TRACKING({ _, sender, _ ->
+            EntityTracking.counters().forEach {
+                sender.sendMessage(TextComponentTranslation("bluerpg.command.tracking.entry", it.key, it.packets))
+            }
         });
 
         operator fun invoke(server: MinecraftServer, sender: ICommandSender, args: List<String>) =
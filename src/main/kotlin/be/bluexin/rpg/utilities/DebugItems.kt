@@ -17,6 +17,7 @@
 
 package be.bluexin.rpg.utilities
 
+import be.bluexin.rpg.PlayerSync
 import be.bluexin.rpg.classes.ClassesGui
 import be.bluexin.rpg.stats.AttributesGui
 import be.bluexin.rpg.stats.PlayerStats
@@ -31,6 +32,7 @@ import net.minecraft.client.Minecraft
 import net.minecraft.client.gui.GuiScreen
 import net.minecraft.client.util.ITooltipFlag
 import net.minecraft.entity.player.EntityPlayer
+import net.minecraft.entity.player.EntityPlayerMP
 import net.minecraft.item.ItemStack
 import net.minecraft.util.ActionResult
 import net.minecraft.util.EnumActionResult
@@ -75,6 +77,7 @@ object StatsDebugItem : ItemMod("debug_stats") {
             worldIn onServer {
                 playerIn.stats.setup(playerIn)
                 playerIn.stats.attributePoints = PlayerStats.LEVELUP_ATTRIBUTES * 3
+                if (playerIn is EntityPlayerMP) PlayerSync.fullSync(playerIn)
             }
         } else worldIn onClient {
             val mc = Minecraft()
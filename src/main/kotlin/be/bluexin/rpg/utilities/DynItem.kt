@@ -17,6 +17,7 @@
 
 package be.bluexin.rpg.utilities
 
+import be.bluexin.rpg.devutil.StackDataCache
 import be.bluexin.rpg.devutil.config
 import be.bluexin.rpg.stats.StatCapability
 import com.google.gson.JsonObject
@@ -26,8 +27,6 @@ import com.teamwizardry.librarianlib.features.base.IModelGenerator
 import com.teamwizardry.librarianlib.features.base.item.IModItemProvider
 import com.teamwizardry.librarianlib.features.base.item.ItemMod
 import com.teamwizardry.librarianlib.features.kotlin.jsonObject
-import com.teamwizardry.librarianlib.features.kotlin.tagCompound
-import com.teamwizardry.librarianlib.features.saving.AbstractSaveHandler
 import com.teamwizardry.librarianlib.features.saving.NamedDynamic
 import com.teamwizardry.librarianlib.features.saving.Savable
 import com.teamwizardry.librarianlib.features.saving.Save
@@ -90,20 +89,13 @@ data class DynamicConfig(
     private val comment: String = "List of keys to use for dynamic item generation."
 }
 
+private val dynamicDataCache = StackDataCache("dynamic") { DynamicData() }
+
+/**
+ * Cached, do not modify.
+ */
 val ItemStack.dynamicData
-    get() = if (item is DynItem) {
-        DynamicData().also {
-            if (tagCompound != null && tagCompound!!.getCompoundTag("dynamic").hasKey(
-                    "auto",
-                    10
-                )
-            ) AbstractSaveHandler.readAutoNBT(
-                it,
-                tagCompound!!.getCompoundTag("dynamic").getCompoundTag("auto"),
-                false
-            )
-        }
-    } else null
+    get() = if (item is DynItem) dynamicDataCache[this] else null
 
 @Savable
 @NamedDynamic(resourceLocation = "b:dd")
@@ -111,16 +103,7 @@ data class DynamicData(
     @Save var primaryColor: Int = 0xe90d0d,
     @Save var secondaryColor: Int = 0x0e61e9
 ) : StatCapability {
-    fun loadFrom(stack: ItemStack, other: DynamicData) {
-        val tag = stack.tagCompound
-        val newTag = tagCompound {
-            "dynamic" to tagCompound {
-                "auto" to AbstractSaveHandler.writeAutoNBT(other, false)
-            }
-        }
-        tag?.merge(newTag)
-        stack.tagCompound = tag ?: newTag
-    }
+    fun loadFrom(stack: ItemStack, other: DynamicData) = dynamicDataCache.write(stack, other)
 
     override fun copy() = this.copy(primaryColor = primaryColor)
 }
\ No newline at end of file
@@ -0,0 +1,64 @@
+/*
+ * Copyright (C) 2019.  Arnaud 'Bluexin' Solé
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package be.bluexin.rpg
+
+import com.mojang.authlib.GameProfile
+import net.minecraft.entity.player.EntityPlayer
+import net.minecraft.init.Bootstrap
+import net.minecraft.profiler.Profiler
+import net.minecraft.world.GameType
+import net.minecraft.world.World
+import net.minecraft.world.WorldProviderSurface
+import net.minecraft.world.WorldSettings
+import net.minecraft.world.WorldType
+import net.minecraft.world.chunk.IChunkProvider
+import net.minecraft.world.storage.SaveHandlerMP
+import net.minecraft.world.storage.WorldInfo
+import net.minecraftforge.event.entity.EntityEvent
+import java.util.*
+
+/**
+ * Server-side world without chunks nor saving, for tests needing entities outside of FML.
+ */
+class TestWorld : World(
+    SaveHandlerMP(),
+    WorldInfo(WorldSettings(0L, GameType.SURVIVAL, false, false, WorldType.FLAT), "test"),
+    WorldProviderSurface(),
+    Profiler(),
+    false
+) {
+    override fun createChunkProvider(): IChunkProvider? = null
+
+    override fun isChunkLoaded(x: Int, z: Int, allowEmpty: Boolean) = false
+
+    /**
+     * Creates a player with the mod attributes registered, like [CommonEventHandler] would.
+     */
+    fun player(name: String = "test"): EntityPlayer =
+        object : EntityPlayer(this, GameProfile(UUID.nameUUIDFromBytes(name.toByteArray()), name)) {
+            override fun isSpectator() = false
+
+            override fun isCreative() = false
+        }.also { CommonEventHandler.entityConstructing(EntityEvent.EntityConstructing(it)) }
+
+    private companion object {
+        init {
+            Bootstrap.register()
+        }
+    }
+}
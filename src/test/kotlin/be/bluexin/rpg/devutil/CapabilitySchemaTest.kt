@@ -0,0 +1,148 @@
+/*
+ * Copyright (C) 2019.  Arnaud 'Bluexin' Solé
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package be.bluexin.rpg.devutil
+
+import be.bluexin.rpg.BlueRPG
+import be.bluexin.rpg.PlayerSync
+import be.bluexin.rpg.TestWorld
+import be.bluexin.rpg.classes.PlayerClassCollection
+import be.bluexin.rpg.gear.Binding
+import be.bluexin.rpg.gear.Rarity
+import be.bluexin.rpg.gear.TokenType
+import be.bluexin.rpg.pets.PetStorage
+import be.bluexin.rpg.skills.*
+import be.bluexin.rpg.stats.*
+import com.teamwizardry.librarianlib.features.saving.AbstractSaveHandler
+import net.minecraft.entity.monster.EntityZombie
+import net.minecraft.util.ResourceLocation
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertNotEquals
+import org.junit.Test
+import java.util.*
+
+/**
+ * Round trips of every [CapabilitySchema]: through the schema itself, from the legacy [AbstractSaveHandler] layout
+ * older versions saved, and from a newer schema version (which must be discarded).
+ */
+class CapabilitySchemaTest {
+
+    private val world = TestWorld()
+
+    private fun <T : Any> check(schema: CapabilitySchema<T>, create: () -> T, fill: T.() -> Unit, fields: T.() -> List<Any?>) {
+        val sample = create().apply(fill)
+        val expected = sample.fields()
+        val defaults = create().fields()
+        assertNotEquals("sample should differ from the defaults", defaults, expected)
+
+        val written = schema.write(sample)
+        assertEquals("write → read", expected, create().also { schema.read(it, written) }.fields())
+
+        val legacy = AbstractSaveHandler.writeAutoNBT(sample, false)
+        assertEquals("legacy layout", expected, create().also { schema.read(it, legacy) }.fields())
+
+        val newer = schema.write(sample).apply { setInteger("schema", schema.version + 1) }
+        assertEquals("newer schema", defaults, create().also { schema.read(it, newer) }.fields())
+    }
+
+    @Test
+    fun gearStats() = check(GearStats.Schema, ::GearStats, {
+        generated = true
+        generator = TokenType.values().first { it != TokenType.CRAFTED }
+        rarity = Rarity.EPIC
+        binding = Binding.values().first { it != Binding.BOE }
+        bound = UUID(1L, 2L)
+        boundUsername = "someone"
+        ilvl = 42
+        levelReq = 12
+        name = "Test blade"
+        stats[PrimaryStat.STRENGTH] = 5
+        stats[SecondaryStat.CRIT_CHANCE] = -3
+        durability = 250
+        requiredStat = PrimaryStat.STRENGTH
+        requiredValue = 4
+    }) {
+        listOf(
+            generated, generator, rarity, binding, bound, boundUsername, ilvl, levelReq, name,
+            stats().associate { it.key to it.value }, durability, requiredStat, requiredValue
+        )
+    }
+
+    @Test
+    fun tokenStats() = check(TokenStats.Schema, ::TokenStats, {
+        rarity = Rarity.LEGENDARY
+        binding = Binding.values().first { it != Binding.BOE }
+        ilvl = 17
+        levelReq = 9
+    }) { listOf(rarity, binding, ilvl, levelReq) }
+
+    @Test
+    fun playerStats() = check(PlayerStats.Schema, { PlayerStats().setup(world.player()) as PlayerStats }, {
+        level.applySync(12, 345L)
+        attributePoints = 9
+        baseStats[PrimaryStat.STRENGTH] = 5
+        baseStats[PrimaryStat.DEXTERITY] = 2
+    }) { listOf(level.level_a, level.exp_a, attributePoints, baseStats().associate { it.key to it.value }) }
+
+    @Test
+    fun playerClasses() {
+        val skill = ResourceLocation(BlueRPG.MODID, "test_skill")
+        // Not a player, so reading doesn't go through the class registry nor the hotbar
+        check(PlayerClassCollection.Schema, { PlayerClassCollection().apply { setup(EntityZombie(world)) } }, {
+            applySync(PlayerSync.Update().apply {
+                mask = PlayerSync.Field.SKILL_POINTS.bit or PlayerSync.Field.SELECTED_SKILLS.bit or
+                        PlayerSync.Field.CLASSES.bit
+                skillPoints = 4
+                skills[skill] = 2
+                selectedSkills = arrayOf(skill, null, null, null, null)
+                classes = arrayOf(ResourceLocation(BlueRPG.MODID, "test_class"), null, null)
+            })
+        }) {
+            listOf(
+                this().associate { it.key to it.value }, classKeys().toList(), selectedSkillKeys().toList(), skillPoints
+            )
+        }
+    }
+
+    @Test
+    fun cooldowns() = check(CooldownCapability.Schema, { CooldownCapability().apply { setup(EntityZombie(world)) } }, {
+        this[cooldownSkills[0]] = 40
+        repeat(10) { tick() }
+        this[cooldownSkills[1]] = 100
+    }) { cooldownSkills.map { listOf(it in this, this[it]) } }
+
+    @Test
+    fun petStorage() = check(PetStorage.Schema, ::PetStorage, {
+        petID = 7
+    }) { listOf(petID) }
+
+    private companion object {
+        /**
+         * Skills to put on cooldown, cooldowns are saved by skill key.
+         * The third one is never started.
+         */
+        val cooldownSkills = List(3) {
+            SkillData(
+                ResourceLocation(BlueRPG.MODID, "cooldown_test_$it"), 0, 20, false, LevelModifier.ZERO,
+                Processor(Use({ 0 }), Self(), null, object : Effect {
+                    override fun invoke(context: SkillContext, targets: TargetBuffer) = Unit
+                }),
+                arrayOf(UUID(0L, it.toLong()))
+            ).also { skill -> SkillRegistry.register(skill) }
+        }
+    }
+}